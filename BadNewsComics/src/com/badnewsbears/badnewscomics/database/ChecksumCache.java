@@ -0,0 +1,145 @@
+package com.badnewsbears.badnewscomics.database;
+
+import java.io.File;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+
+/**
+ * Remembers the checksums of database files so unchanged files are not hashed
+ * again. Every entry records the size, modification time &amp; inode of the
+ * file &amp; the size &amp; modification time of its write-ahead log, taken
+ * before the file was hashed; an entry is only used while all of them still
+ * match. A log that was emptied or deleted since matches, as its pages can
+ * only have left it by being copied into the file, which changes the file's
+ * time unless they were copied before; the manager checkpoints before
+ * hashing anyway. A file replaced by another one of the same size is told
+ * apart by its inode on API 21 &amp; up.
+ * <br/><br/>
+ * {@link DatabaseManager} drops a file's entry whenever it hands out a
+ * writable handle for it. A hash that was running at that moment is not
+ * stored, see {@link Stamp}. Writes through handles obtained earlier are
+ * noticed by the size &amp; time check only.
+ */
+class ChecksumCache {
+
+    private static final String PREFERENCE_FILE_NAME = "dbmanager_checksums";
+
+    private final SharedPreferences _preferences;
+    private int _generation;
+
+    /**
+     * State of a file before hashing it, to be passed to {@link #put}.
+     */
+    static class Stamp {
+        final String stat;
+        final int generation;
+
+        private Stamp(final String stat, final int generation) {
+            this.stat = stat;
+            this.generation = generation;
+        }
+    }
+
+    ChecksumCache(final Context context) {
+        _preferences = context.getSharedPreferences(PREFERENCE_FILE_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @param name Name of the algorithm, see {@link FileChecksum#getName(int)},
+     * or {@link ChecksumManifest#NAME} for the root of a manifest
+     * @return The cached checksum as [name]:..., or null if there is none or
+     * the file changed since it was recorded
+     */
+    String get(final File file, final String name) {
+        final String entry = _preferences.getString(file.getAbsolutePath(), null);
+        if (entry == null)
+            return null;
+
+        // stat|checksum|checksum...
+        final String[] fields = entry.split("\\|");
+        if (!matches(fields[0], file))
+            return null;
+
+        final String prefix = name + ':';
+        for (int i = 1; i < fields.length; i++) {
+            if (fields[i].startsWith(prefix))
+                return fields[i];
+        }
+        return null;
+    }
+
+    /**
+     * @return The current state of a file; take it before hashing the file
+     */
+    synchronized Stamp stamp(final File file) {
+        return new Stamp(stat(file), _generation);
+    }
+
+    /**
+     * Records a checksum of a file, unless the entry was removed since the
+     * stamp was taken. Checksums in other algorithms recorded for the same
+     * state are kept.
+     */
+    synchronized void put(final File file, final Stamp stamp, final String checksum) {
+        if (stamp.generation != _generation)
+            return;
+
+        final String key = file.getAbsolutePath();
+        final StringBuilder entry = new StringBuilder(stamp.stat).append('|').append(checksum);
+
+        final String old = _preferences.getString(key, null);
+        if (old != null) {
+            final String[] fields = old.split("\\|");
+            final String algorithm = checksum.substring(0, checksum.indexOf(':') + 1);
+            if (fields[0].equals(stamp.stat)) {
+                for (int i = 1; i < fields.length; i++) {
+                    if (!fields[i].startsWith(algorithm))
+                        entry.append('|').append(fields[i]);
+                }
+            }
+        }
+
+        _preferences.edit().putString(key, entry.toString()).apply();
+    }
+
+    synchronized void remove(final File file) {
+        _generation++;
+        _preferences.edit().remove(file.getAbsolutePath()).apply();
+    }
+
+    /**
+     * @return Size, modification time &amp; inode of the file &amp; size &amp;
+     * modification time of its WAL; all are 0 for files that do not exist
+     */
+    private static String stat(final File file) {
+        final File wal = new File(file.getPath() + "-wal");
+        return file.length() + ":" + file.lastModified() + ":" + inode(file) + ":"
+                + wal.length() + ":" + wal.lastModified();
+    }
+
+    private static boolean matches(final String stat, final File file) {
+        final String head = file.length() + ":" + file.lastModified() + ":" + inode(file) + ":";
+        if (!stat.startsWith(head))
+            return false;
+
+        final File wal = new File(file.getPath() + "-wal");
+        return wal.length() == 0
+                || stat.substring(head.length()).equals(wal.length() + ":" + wal.lastModified());
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static long inode(final File file) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP)
+            return 0;
+        try {
+            return Os.stat(file.getPath()).st_ino;
+        } catch (ErrnoException e) {
+            return 0;
+        }
+    }
+}
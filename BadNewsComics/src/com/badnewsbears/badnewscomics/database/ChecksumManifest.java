@@ -0,0 +1,460 @@
+package com.badnewsbears.badnewscomics.database;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Checksums of a SQLite database file in chunks of whole pages, plus a root
+ * checksum over all chunks. Unlike a single file checksum a manifest tells
+ * which byte ranges of a damaged file no longer match, &amp; it can be brought
+ * up to date after writes without hashing the unchanged chunks again.
+ * <br/><br/>
+ * Only the file is hashed, so committed pages still in the write-ahead log
+ * have to be checkpointed into it first. SQLite keeps no write generation per
+ * page, but in WAL mode the file only changes when a checkpoint copies pages
+ * back from the log, whose frame headers name them. {@link DatabaseManager}
+ * reads those names with {@link Wal#read(File)}, checkpoints the database
+ * &amp; passes them to {@link #update(File, Wal)} &amp;
+ * {@link #verifyChanges(File, Wal, FileChecksum.Throttle)}, which then only
+ * read the chunks holding them.
+ * <br/><br/>
+ * The incremental path applies only while nothing else copied pages back
+ * since the last update, i.e. while the file kept the size &amp; modification
+ * time recorded then. SQLite checkpoints by itself about every 100 written
+ * pages on Android &amp; when the last handle closes; after that, &amp; for
+ * databases using a rollback journal, a changed file is read in full. A file
+ * of unchanged size &amp; modification time without a log is taken as
+ * unchanged. Writes committed between reading the log &amp; the checkpoint
+ * are missed, so store checksums while the database is not being written.
+ * <br/><br/>
+ * Manifests are stored as text:
+ * <pre>
+ * manifest:[algorithm]:[root hex]
+ * [page size] [chunk size] [length] [modified]
+ * [chunk hex]
+ * ...
+ * </pre>
+ * Instances are not thread-safe.
+ */
+public class ChecksumManifest {
+
+    /** Name of manifests in formatted checksums, see {@link #getRootChecksum()}. */
+    public static final String NAME = "manifest";
+
+    private static final int DEFAULT_PAGE_SIZE = 4096;
+    private static final int CHUNK_TARGET = 1024 * 1024; // bytes per chunk, rounded to pages
+    private static final int BLOCK_SIZE = 256 * 1024;
+
+    private static final byte[] SQLITE_MAGIC = "SQLite format 3\0".getBytes();
+    private static final int HEADER_PAGE_SIZE_OFFSET = 16;
+
+    private static final int WAL_MAGIC = 0x377f0682; // low bit is the checksum byte order
+    private static final int WAL_HEADER_SIZE = 32;
+    private static final int WAL_FRAME_HEADER_SIZE = 24;
+
+    private final int _algorithm;
+    private int _pageSize;
+    private int _chunkSize;
+    private long _length;
+    private long _modified;
+    private byte[][] _chunks = new byte[0][];
+    private byte[] _root;
+
+    private ChecksumManifest(final int algorithm) {
+        FileChecksum.getName(algorithm); // validates
+        _algorithm = algorithm;
+    }
+
+    /**
+     * Hashes a database file into a new manifest.
+     * @param algorithm One of the FileChecksum.ALGORITHM_* constants
+     * @throws IOException If the file could not be read
+     */
+    public static ChecksumManifest create(final File database, final int algorithm)
+            throws IOException {
+        final ChecksumManifest ret = new ChecksumManifest(algorithm);
+        ret.update(database, null);
+        return ret;
+    }
+
+    /**
+     * Brings the manifest up to date with the current state of the file,
+     * which has to hold every committed page. Only a file unchanged since the
+     * last update is not read again. The new chunks are taken as they are;
+     * use {@link #verify(File)} before updating to find damage.
+     * @return Number of chunks that were hashed
+     * @throws IOException If the file could not be read
+     */
+    public int update(final File database) throws IOException {
+        return update(database, null);
+    }
+
+    /**
+     * Like {@link #update(File)}, but only rehashes the chunks holding the
+     * pages of a log since checkpointed into the file.
+     * @param wal Read before the checkpoint, may be null
+     */
+    int update(final File database, final Wal wal) throws IOException {
+        final int pageSize = readPageSize(database);
+        final long length = database.length();
+        final long modified = database.lastModified();
+
+        final boolean[] changed = getChangedChunks(pageSize, length, modified, wal);
+        final int oldCount = _chunks.length;
+        if (changed == null) {
+            _pageSize = pageSize;
+            _chunkSize = pageSize * Math.max(1, CHUNK_TARGET / pageSize);
+        }
+        final int count = getChunkCount(length);
+
+        _chunks = Arrays.copyOf(_chunks, count);
+        int ret = 0;
+        final FileInputStream in = new FileInputStream(database);
+        try {
+            final FileChannel channel = in.getChannel();
+            final byte[] block = new byte[Math.min(BLOCK_SIZE, _chunkSize)];
+            for (int i = 0; i < count; i++) {
+                if (changed != null && !changed[i] && i < oldCount)
+                    continue;
+                _chunks[i] = hashChunk(channel, i, length, block, null);
+                ret++;
+            }
+        } finally {
+            in.close();
+        }
+
+        _length = length;
+        _modified = modified;
+        _root = hashRoot();
+        return ret;
+    }
+
+    /**
+     * Rehashes every chunk of the file &amp; compares it with the manifest.
+     * This finds damage anywhere in the file, whatever caused it.
+     * @return Byte ranges of the file that do not match, as {start, end}
+     * pairs with an exclusive end, adjacent chunks merged. Empty if the
+     * file matches. The first damaged page of a range is start / page size + 1.
+     * @throws IOException If the file could not be read
+     */
+    public long[][] verify(final File database) throws IOException {
+        return verify(database, null);
+    }
+
+    /**
+     * @param throttle Called before every block read, may be null
+     * @see #verify(File)
+     */
+    long[][] verify(final File database, final FileChecksum.Throttle throttle) throws IOException {
+        return compare(database, null, throttle);
+    }
+
+    /**
+     * Like {@link #verify(File)}, but only rehashes the chunks SQLite may have
+     * written since the last update, so the cost grows with the writes rather
+     * than the size of the file. Falls back to reading every chunk where
+     * {@link #update(File, Wal)} would; see {@link ChecksumManifest}. Damage
+     * to chunks SQLite did not write is not found.
+     * @see #verify(File)
+     */
+    public long[][] verifyChanges(final File database) throws IOException {
+        return verifyChanges(database, null, null);
+    }
+
+    /**
+     * @param wal Read before checkpointing the file, may be null
+     * @param throttle Called before every block read, may be null
+     * @see #verifyChanges(File)
+     */
+    long[][] verifyChanges(final File database, final Wal wal,
+            final FileChecksum.Throttle throttle) throws IOException {
+        final boolean[] changed = getChangedChunks(readPageSize(database), database.length(),
+                database.lastModified(), wal);
+        return compare(database, changed, throttle);
+    }
+
+    /**
+     * @param changed Chunks to rehash, null for all
+     */
+    private long[][] compare(final File database, final boolean[] changed,
+            final FileChecksum.Throttle throttle) throws IOException {
+        final ArrayList<long[]> ret = new ArrayList<long[]>();
+        final long length = database.length();
+
+        final FileInputStream in = new FileInputStream(database);
+        try {
+            final FileChannel channel = in.getChannel();
+            final byte[] block = new byte[Math.min(BLOCK_SIZE, _chunkSize)];
+            final int count = getChunkCount(Math.min(length, _length));
+            for (int i = 0; i < count; i++) {
+                if (changed != null && !changed[i])
+                    continue;
+                if (!Arrays.equals(_chunks[i], hashChunk(channel, i, length, block, throttle)))
+                    addRange(ret, (long) i * _chunkSize, Math.min((long) (i + 1) * _chunkSize, length));
+            }
+        } finally {
+            in.close();
+        }
+
+        // Truncated or extended
+        if (length != _length)
+            addRange(ret, Math.min(length, _length), Math.max(length, _length));
+
+        return ret.toArray(new long[ret.size()][]);
+    }
+
+    /**
+     * @return The root checksum as manifest:[algorithm]:[hex]
+     */
+    public String getRootChecksum() {
+        return NAME + ':' + FileChecksum.format(_algorithm, _root);
+    }
+
+    public int getAlgorithm() {
+        return _algorithm;
+    }
+
+    public int getPageSize() {
+        return _pageSize;
+    }
+
+    public int getChunkSize() {
+        return _chunkSize;
+    }
+
+    public int getChunkCount() {
+        return _chunks.length;
+    }
+
+    /**
+     * Writes the manifest to a file, replacing its contents.
+     */
+    public void write(final File file) throws IOException {
+        final Writer out = new FileWriter(file);
+        try {
+            out.write(getRootChecksum());
+            out.write('\n');
+            out.write(_pageSize + " " + _chunkSize + " " + _length + " " + _modified + '\n');
+            for (byte[] chunk : _chunks) {
+                out.write(FileChecksum.toHex(chunk));
+                out.write('\n');
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Reads a manifest written by {@link #write(File)}.
+     * @return The manifest, or null if the file holds a plain checksum
+     * @throws IOException If the file could not be read or is malformed
+     */
+    public static ChecksumManifest read(final File file) throws IOException {
+        final BufferedReader in = new BufferedReader(new FileReader(file));
+        try {
+            final String root = in.readLine();
+            if (root == null || !root.startsWith(NAME + ':'))
+                return null;
+
+            try {
+                final String[] checksum = root.split(":");
+                final int algorithm = FileChecksum.getAlgorithm(checksum[1]);
+                if (algorithm < 0)
+                    throw new IOException("Unknown algorithm " + checksum[1]);
+
+                final ChecksumManifest ret = new ChecksumManifest(algorithm);
+                final String[] fields = in.readLine().split(" ");
+                ret._pageSize = Integer.parseInt(fields[0]);
+                ret._chunkSize = Integer.parseInt(fields[1]);
+                ret._length = Long.parseLong(fields[2]);
+                ret._modified = Long.parseLong(fields[3]);
+
+                final int count = ret.getChunkCount(ret._length);
+                ret._chunks = new byte[count][];
+                for (int i = 0; i < count; i++)
+                    ret._chunks[i] = FileChecksum.fromHex(in.readLine());
+
+                ret._root = FileChecksum.fromHex(checksum[2]);
+                if (!Arrays.equals(ret._root, ret.hashRoot()))
+                    throw new IOException("Manifest " + file + " does not match its root checksum");
+                return ret;
+            } catch (RuntimeException e) {
+                // Missing lines or fields, bad numbers or hex
+                throw new IOException("Malformed manifest " + file, e);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return For each chunk of a file of the given length, whether SQLite
+     * may have written it since the last update, or null if that is unknown
+     * &amp; every chunk has to be read
+     */
+    private boolean[] getChangedChunks(final int pageSize, final long length, final long modified,
+            final Wal wal) {
+        // Checkpoints other than the one that copied the log leave no record
+        final long lastLength = wal == null ? length : wal.length;
+        final long lastModified = wal == null ? modified : wal.modified;
+        if (_root == null || pageSize != _pageSize
+                || lastLength != _length || lastModified != _modified)
+            return null;
+
+        final int count = getChunkCount(length);
+        final boolean[] ret = new boolean[count];
+
+        // Pages copied back from the log
+        if (wal != null) {
+            for (int page : wal.pages) {
+                final long chunk = (page - 1L) * _pageSize / _chunkSize;
+                if (chunk < count)
+                    ret[(int) chunk] = true;
+            }
+        }
+        // Chunks that grew or shrank
+        if (length != _length) {
+            for (long i = Math.min(length, _length) / _chunkSize; i < count; i++)
+                ret[(int) i] = true;
+        }
+        return ret;
+    }
+
+    private int getChunkCount(final long length) {
+        return (int) ((length + _chunkSize - 1) / _chunkSize);
+    }
+
+    private byte[] hashChunk(final FileChannel channel, final int index, final long length,
+            final byte[] block, final FileChecksum.Throttle throttle) throws IOException {
+        final long start = (long) index * _chunkSize;
+        return FileChecksum.digest(channel, start, Math.min(_chunkSize, length - start),
+                _algorithm, block, throttle);
+    }
+
+    private byte[] hashRoot() {
+        final int size = _chunks.length == 0 ? 0 : _chunks[0].length;
+        final ByteBuffer all = ByteBuffer.allocate(_chunks.length * size);
+        for (byte[] chunk : _chunks)
+            all.put(chunk);
+        return FileChecksum.digest(all.array(), _algorithm);
+    }
+
+    private static void addRange(final ArrayList<long[]> ranges, final long start, final long end) {
+        final long[] last = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+        if (last != null && last[1] >= start)
+            last[1] = Math.max(last[1], end);
+        else
+            ranges.add(new long[] { start, end });
+    }
+
+    /**
+     * @return Page size from the database header, or {@value #DEFAULT_PAGE_SIZE}
+     * if the file is not a SQLite database
+     */
+    private static int readPageSize(final File database) throws IOException {
+        final byte[] header = new byte[HEADER_PAGE_SIZE_OFFSET + 2];
+        final RandomAccessFile in = new RandomAccessFile(database, "r");
+        try {
+            if (in.length() < header.length)
+                return DEFAULT_PAGE_SIZE;
+            in.readFully(header);
+        } finally {
+            in.close();
+        }
+
+        for (int i = 0; i < SQLITE_MAGIC.length; i++) {
+            if (header[i] != SQLITE_MAGIC[i])
+                return DEFAULT_PAGE_SIZE;
+        }
+
+        // Big endian; 1 stands for 65536
+        final int size = (header[HEADER_PAGE_SIZE_OFFSET] & 0xff) << 8
+                | (header[HEADER_PAGE_SIZE_OFFSET + 1] & 0xff);
+        if (size == 1)
+            return 65536;
+        if (size < 512 || (size & (size - 1)) != 0)
+            return DEFAULT_PAGE_SIZE;
+        return size;
+    }
+
+    /**
+     * Pages in a write-ahead log &amp; the state of its database file before
+     * they were copied into it.
+     */
+    static class Wal {
+        long length;
+        long modified;
+        int[] pages;
+
+        /**
+         * Reads the pages named in the log of a database, to be passed to
+         * {@link ChecksumManifest#update(File, Wal)} once it was checkpointed.
+         * @return The log, or null if there is none or it is empty
+         */
+        static Wal read(final File database) throws IOException {
+            final File file = new File(database.getPath() + "-wal");
+            final long length = database.length();
+            final long modified = database.lastModified();
+            if (file.length() < WAL_HEADER_SIZE)
+                return null;
+
+            final FileInputStream in = new FileInputStream(file);
+            try {
+                final FileChannel channel = in.getChannel();
+                final ByteBuffer header = ByteBuffer.allocate(WAL_HEADER_SIZE);
+                readFully(channel, header, 0);
+                if ((header.getInt(0) & ~1) != WAL_MAGIC)
+                    return null;
+
+                final Wal ret = new Wal();
+                ret.length = length;
+                ret.modified = modified;
+                final int pageSize = header.getInt(8);
+                final int salt1 = header.getInt(16);
+                final int salt2 = header.getInt(20);
+
+                // Frames of an earlier log generation carry other salts
+                final ByteBuffer frame = ByteBuffer.allocate(WAL_FRAME_HEADER_SIZE);
+                final long size = channel.size();
+                int[] pages = new int[64];
+                int count = 0;
+                for (long position = WAL_HEADER_SIZE;
+                        position + WAL_FRAME_HEADER_SIZE + pageSize <= size;
+                        position += WAL_FRAME_HEADER_SIZE + pageSize) {
+                    frame.clear();
+                    readFully(channel, frame, position);
+                    if (frame.getInt(8) != salt1 || frame.getInt(12) != salt2)
+                        break;
+
+                    if (count == pages.length)
+                        pages = Arrays.copyOf(pages, count * 2);
+                    pages[count++] = frame.getInt(0);
+                }
+                ret.pages = Arrays.copyOf(pages, count);
+                return ret;
+            } finally {
+                in.close();
+            }
+        }
+
+        private static void readFully(final FileChannel channel, final ByteBuffer buffer,
+                long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                final int n = channel.read(buffer, position);
+                if (n < 0)
+                    throw new IOException("Unexpected end of log");
+                position += n;
+            }
+        }
+    }
+}
@@ -1,21 +1,24 @@
 package com.badnewsbears.badnewscomics.database;
 
+import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.FilenameFilter;
 import java.io.IOException;
-import java.nio.channels.FileChannel;
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
 
 import android.annotation.SuppressLint;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.os.Environment;
@@ -31,7 +34,7 @@ import android.util.Log;
 public class DatabaseManager {
 	
 	/* TODO
-	 * - Database file version caching ( no file checking )
+	 * + Database file version caching
 	 * - Download to temp file then copy over
 	 * + Available storage space
 	 * + MD5 checksums
@@ -60,15 +63,37 @@ public class DatabaseManager {
     private int _externalStorageState;
     
     protected SQLiteDatabase _database;
+    private String _databaseName;
+
+    private boolean _keepOpen;
+    private final LinkedHashMap<String, SQLiteDatabase> _openDatabases =
+    		new LinkedHashMap<String, SQLiteDatabase>();
+    // dbName -> (alias -> attached dbName), kept while databases are reopened
+    private final HashMap<String, LinkedHashMap<String, String>> _attachments =
+    		new HashMap<String, LinkedHashMap<String, String>>();
+
+    private static final Pattern ALIAS_PATTERN = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
  
     private final Context _context;
+    private final DatabaseRegistry _registry = DatabaseRegistry.getInstance();
+    private final DatabaseVersionCache _versionCache;
+    private final ChecksumCache _checksumCache;
     
     private FilenameFilter _fileFilter = new DatabaseFileFilter();
+
+    private FileTransfer.OnProgressListener _transferListener;
+    private volatile FileTransfer _transfer;
+
+    private int _checksumAlgorithm = FileChecksum.ALGORITHM_MD5;
+    private boolean _checksumManifest;
+    private boolean _writeAheadLogging = true;
     
     private class DatabaseFileFilter implements FilenameFilter {
 		@Override
 		public boolean accept(File dir, String filename) {
-			return filename.endsWith(".s3db") || filename.endsWith(".csm");
+			// A log or journal left by a crash holds data of its database
+			return filename.endsWith(".s3db") || filename.endsWith(".csm")
+					|| filename.endsWith(".s3db-wal") || filename.endsWith(".s3db-journal");
 		}
     }
     
@@ -83,6 +108,8 @@ public class DatabaseManager {
      */
     public DatabaseManager(Context context) {
     	_context = context;
+    	_versionCache = new DatabaseVersionCache(context);
+    	_checksumCache = new ChecksumCache(context);
     	_devicePath = context.getDir("databases", Context.MODE_PRIVATE);
     	
     	refreshExternalState();
@@ -227,46 +254,55 @@ public class DatabaseManager {
 		if (!dbFile.exists()) {
 			return -1;
 		} else {
-			int version;
-			SQLiteDatabase db = SQLiteDatabase.openDatabase(
-                    dbFile.getAbsolutePath(),
-                    null, SQLiteDatabase.OPEN_READONLY
-            );
-			version = db.getVersion(); 
-			db.close();
-			return version;
+			return readVersion(dbName, dbFile);
 		}
     }
+
+    /**
+     * Reads the version of an existing database file, from the version cache
+     * if the file is unchanged since it was last read.
+     */
+    private int readVersion(String dbName, File dbFile) {
+    	final int cached = _versionCache.get(dbFile);
+    	if (cached != DatabaseVersionCache.UNKNOWN)
+    		return cached;
+
+    	SQLiteDatabase db = _registry.acquire(dbName, _storageMode, dbFile, getReadFlags());
+    	try {
+    		final int version = db.getVersion();
+    		// Recorded after the checkpoint the handle would do on its last close
+    		if (!db.isReadOnly())
+    			checkpoint(db);
+    		_versionCache.put(dbFile, version);
+    		return version;
+    	} finally {
+    		_registry.release(db);
+    	}
+    }
     
     /**
-     * Calls runUpdates() on a new thread without blocking execution. Especially 
-     * recommended when the database is being pulled from an online source.
+     * Queues runUpdates() on the {@link UpdateScheduler} without blocking
+     * execution. Especially recommended when the database is being pulled from
+     * an online source. Updates of the same database run one after another; a
+     * request with the same UpdateManager as one still waiting is merged into it.
      * @param dbName Name of the database
      * @param manager UpdateManager
-     * @param listener Completion callback listener
+     * @param listener Completion callback listener, may be null. An
+     * {@link OnUpdateProgressListener} also receives progress.
+     * @return Future of the update, to cancel it or query its progress
      * @see #runUpdates(String dbName, DatabaseUpdateManager manager)
      */
-    public void runUpdatesAsync(final String dbName, final DatabaseUpdateManager manager,
-            final OnUpdateCompleteListener listener) {
-    	Thread t = new Thread( new Runnable() {
-			@Override
-			public void run() {
-				try {
-					runUpdates(dbName, manager);
-					listener.onComplete();
-				} catch (Exception e) {
-					listener.onError(e);
-				}
-			}
-    	});
-    	t.start();
+    public UpdateScheduler.UpdateFuture runUpdatesAsync(final String dbName,
+            final DatabaseUpdateManager manager, final OnUpdateCompleteListener listener) {
+    	return UpdateScheduler.getInstance().schedule(this, dbName, manager, listener);
     }
     
     /**
      * Runs required updates for specified database. Calls the supplied
      * UpdateManager's onCreate() method if the database does not exist.
      * Otherwise calls getCurrentVersion() then onUpdate() if the
-     * current version is newer.</br></br>
+     * current version is newer. Waits for other updates of the same
+     * database to finish first.</br></br>
      * Note - The UpdateManager is responsible for setting the database version
      * @param dbName Name of the database
      * @param manager UpdateManager
@@ -275,36 +311,44 @@ public class DatabaseManager {
      * @throws UpgradeException Dependent on UpdateManager implementation
      * @throws InitializationException Dependent on UpdateManager implementation
      */
-    @SuppressWarnings("ResultOfMethodCallIgnored")
     public void runUpdates(String dbName, DatabaseUpdateManager manager)
             throws IOException, CreationException, UpgradeException, InitializationException {
     	
-    	manager.onInitialize();
-    	
-    	File dbFile;
-    	switch (_storageMode) {
-    		case STORAGE_MODE_DEVICE:
-    			dbFile = new File(_devicePath, dbName + ".s3db");
-    			break;
-    		case STORAGE_MODE_EXTERNAL:
-    			dbFile = new File(_externalPath, dbName + ".s3db");
-    			break;
-            default:
-                throw new IllegalStateException("Unknown storage mode");
+    	final File dbFile = getDatabaseFile(dbName);
+    	if (dbFile == null)
+    		throw new IllegalStateException("Unknown storage mode");
+
+    	synchronized (UpdateScheduler.getLock(dbFile.getAbsolutePath())) {
+    		runUpdates(dbName, dbFile, manager);
     	}
+    }
+
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    private void runUpdates(String dbName, File dbFile, DatabaseUpdateManager manager)
+            throws IOException, CreationException, UpgradeException, InitializationException {
+    	
+    	manager.onInitialize();
 
 		if (!dbFile.exists()) {
 			dbFile.createNewFile();
+			_registry.evict(dbName, _storageMode);
+			_versionCache.remove(dbFile);
+			_checksumCache.remove(dbFile);
 			manager.onCreate(dbFile);
+			readVersion(dbName, dbFile);
 		} else {
 			int oldVersion, newVersion;
-			SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(dbFile, null);
-			oldVersion = db.getVersion(); 
+			oldVersion = readVersion(dbName, dbFile);
 			newVersion = manager.getCurrentVersion();
-			db.close();
 			if (oldVersion < newVersion)
-				if (manager.needsUpdate(oldVersion, newVersion))
+				if (manager.needsUpdate(oldVersion, newVersion)) {
+					// The manager may replace the file, don't keep the old one open
+					_registry.evict(dbName, _storageMode);
+					_versionCache.remove(dbFile);
+					_checksumCache.remove(dbFile);
 					manager.onUpgrade(dbFile, oldVersion, newVersion);
+					readVersion(dbName, dbFile);
+				}
 		}
     }
     
@@ -349,15 +393,99 @@ public class DatabaseManager {
     
     /**
      * Gets a writable database file from either application or external storage.
-     * If the file does not exist it will be created.
+     * If the file does not exist it will be created. The handle is shared with
+     * other users of the same database; close it once done as usual, which
+     * only releases this caller's reference.
      * @param dbName Name of the database file
      * @return Resulting database file
      * @throws IOException If the file cannot be retrieved
+     * @see DatabaseRegistry
      */
     public SQLiteDatabase getDatabase(String dbName) throws IOException {
     	File file = getFile(dbName);
-    	return SQLiteDatabase.openDatabase(
-    			file.getAbsolutePath(), null, SQLiteDatabase.CREATE_IF_NECESSARY);
+    	_checksumCache.remove(file); // the caller may write
+    	return _registry.share(dbName, _storageMode, file,
+    			getWriteFlags() | SQLiteDatabase.CREATE_IF_NECESSARY);
+    }
+    
+    /**
+     * @return Names of all databases in the current storage directory
+     */
+    public String[] getDatabaseNames() {
+    	final File dir = _storageMode == STORAGE_MODE_EXTERNAL ? _externalPath : _devicePath;
+    	final String[] files = dir == null ? null : dir.list();
+    	if (files == null)
+    		return new String[0];
+
+    	final ArrayList<String> ret = new ArrayList<String>(files.length);
+    	for (String file : files) {
+    		if (file.endsWith(".s3db"))
+    			ret.add(file.substring(0, file.length() - ".s3db".length()));
+    	}
+    	return ret.toArray(new String[ret.size()]);
+    }
+
+    /**
+     * @return Flags for opening a database only to read from it. A writable
+     * handle is used where possible, as it can be shared with later writers.
+     */
+    private int getReadFlags() {
+    	return getStorageState() == STORAGE_STATE_READWRITE
+    			? getWriteFlags() : SQLiteDatabase.OPEN_READONLY;
+    }
+
+    /**
+     * Copies the pages committed to the write-ahead log of a database into
+     * its file &amp; empties the log, so that the file alone holds the
+     * database. Checksums only hash the file, &amp; stamps of it taken
+     * afterwards stay valid when the last handle closes, which would
+     * otherwise checkpoint it then.
+     * @return False if readers kept the checkpoint from completing
+     */
+    private static boolean checkpoint(final SQLiteDatabase db) {
+    	if (new File(db.getPath() + "-wal").length() == 0)
+    		return true;
+
+    	// TRUNCATE needs SQLite 3.8.8 (API 23); older versions run a passive
+    	// checkpoint, which copies as much as readers allow but keeps the log
+    	final Cursor cursor = db.rawQuery("PRAGMA wal_checkpoint(TRUNCATE)", null);
+    	try {
+    		// busy, frames in the log, frames copied; -1 without a log
+    		return cursor.moveToFirst() && cursor.getInt(0) == 0
+    				&& cursor.getInt(2) >= cursor.getInt(1);
+    	} finally {
+    		cursor.close();
+    	}
+    }
+
+    /**
+     * {@link #checkpoint(SQLiteDatabase)} before hashing a database file.
+     * Does not open the database if its log is empty.
+     * @throws IOException If the log holds pages that could not be copied
+     * into the file, as readers were active or storage is read-only
+     */
+    private void checkpoint(final String dbName, final File dbFile) throws IOException {
+    	if (new File(dbFile.getPath() + "-wal").length() == 0)
+    		return;
+    	if (getStorageState() != STORAGE_STATE_READWRITE)
+    		throw new IOException("Cannot checkpoint " + dbName + " on read-only storage");
+
+    	final SQLiteDatabase db = _registry.acquire(dbName, _storageMode, dbFile, getWriteFlags());
+    	try {
+    		if (!checkpoint(db))
+    			throw new IOException("Readers kept " + dbName + " from being checkpointed");
+    	} finally {
+    		_registry.release(db);
+    	}
+    }
+
+    /**
+     * @return Flags for opening a writable database
+     */
+    private int getWriteFlags() {
+    	return _writeAheadLogging
+    			? SQLiteDatabase.OPEN_READWRITE | SQLiteDatabase.ENABLE_WRITE_AHEAD_LOGGING
+    			: SQLiteDatabase.OPEN_READWRITE;
     }
     
     /**
@@ -367,19 +495,29 @@ public class DatabaseManager {
      */
     @SuppressWarnings("ResultOfMethodCallIgnored")
     public boolean deleteDatabase(String dbName) {
+    	_registry.evict(dbName, _storageMode);
+
     	File del;
     	switch (_storageMode) {
     		case STORAGE_MODE_DEVICE:
     			new File(_devicePath, dbName + ".csm").delete();
     			del = new File(_devicePath, dbName + ".s3db");
-    			return del.delete();
+    			break;
     		case STORAGE_MODE_EXTERNAL:
     			new File(_externalPath, dbName + ".csm").delete();
     			del = new File(_externalPath, dbName + ".s3db");
-    			return del.delete();
+    			break;
+    		default:
+    			return false;
     	}
 
-    	return false;
+    	_versionCache.remove(del);
+    	_checksumCache.remove(del);
+    	// A stale log or journal would be applied to a new database of the same name
+    	new File(del.getPath() + "-wal").delete();
+    	new File(del.getPath() + "-shm").delete();
+    	new File(del.getPath() + "-journal").delete();
+    	return del.delete();
     }
     
     /**
@@ -402,6 +540,7 @@ public class DatabaseManager {
     	if (oldStorageMode == _storageMode)
     		return;
     	
+    	final String[] reopen = suspendDatabases();
     	boolean transferSuccess = true;
     	try {
     		transfer(oldStorageMode, _storageMode);
@@ -412,6 +551,7 @@ public class DatabaseManager {
     		Editor e = sp.edit();
     		e.putBoolean(KEY_TRANSFER_SUCCESS, transferSuccess);
     		e.commit();
+    		resumeDatabases(reopen);
     	}
     	
     }
@@ -420,6 +560,10 @@ public class DatabaseManager {
     private void transfer(int oldStorageMode, int newStorageMode)
             throws FileTransferException {
     	try {
+	    	// Close shared handles before the files move; this also copies
+	    	// back and removes the logs of cleanly closed databases
+	    	_registry.evictAll(oldStorageMode);
+
 	    	// Get existing files
 	    	Log.d(TAG, "Retrieving existing database files");
 	    	File files[];
@@ -433,41 +577,38 @@ public class DatabaseManager {
                 default:
                     throw new IllegalStateException("Unknown storage mode");
 	    	}
-	    	
+
 	    	// Copy to new directory
 	    	Log.d(TAG, "Copying files to new storage directory");
-	    	File out;
-	    	FileChannel src, dst;
+	    	final File target;
 	    	switch (newStorageMode) {
 	    		case STORAGE_MODE_DEVICE:
-	    			for (File file : files) {
-	    				out = new File(_devicePath, file.getName());
-	    				out.createNewFile();
-	    				src = new FileInputStream(file).getChannel();
-	    				dst = new FileOutputStream(out).getChannel();
-	    				dst.transferFrom(src, 0, src.size());
-	    				src.close();
-	    				dst.close();
-	    			}
+	    			target = _devicePath;
 	    			break;
 	    		case STORAGE_MODE_EXTERNAL:
-	    			for (File file : files) {
-	    				out = new File(_externalPath, file.getName());
-	    				out.createNewFile();
-	    				src = new FileInputStream(file).getChannel();
-	    				dst = new FileOutputStream(out).getChannel();
-	    				dst.transferFrom(src, 0, src.size());
-	    				src.close();
-	    				dst.close();
-	    			}
+	    			target = _externalPath;
 	    			break;
+                default:
+                    throw new IllegalStateException("Unknown storage mode");
+	    	}
+
+	    	final FileTransfer transfer = new FileTransfer(FileTransfer.DEFAULT_THREADS);
+	    	transfer.setOnProgressListener(_transferListener);
+	    	_transfer = transfer;
+	    	try {
+	    		transfer.copy(files, target);
+	    	} finally {
+	    		_transfer = null;
 	    	}
 	    	
-	    	// Delete old files
+	    	// Delete old files, only now that every copy is verified & in place
 	    	Log.d(TAG, "Deleting old database files");
 	    	for (File file : files) {
+	    		_versionCache.remove(file);
+	    		_checksumCache.remove(file);
 	    		file.delete();
 	    	}
+	    	FileTransfer.finish(files, target);
 	    	
 	    	Log.d(TAG, "Transfer success");
 	    	
@@ -476,6 +617,26 @@ public class DatabaseManager {
     	}
     }
     
+    /**
+     * @param listener Receives progress of file transfers started by
+     * {@link #setStorageMode(int)} &amp; {@link #reTransfer()}, on the
+     * copying threads
+     */
+    public void setOnTransferProgressListener(FileTransfer.OnProgressListener listener) {
+    	_transferListener = listener;
+    }
+
+    /**
+     * Cancels a running file transfer from another thread. The transfer
+     * fails with a {@link FileTransferException} &amp; can be resumed with
+     * {@link #reTransfer()}, which skips the chunks already copied.
+     */
+    public void cancelTransfer() {
+    	final FileTransfer transfer = _transfer;
+    	if (transfer != null)
+    		transfer.cancel();
+    }
+
     /**
      * Changes the default storage mode & transfers any existing 
      * database files to the new storage mode's directory
@@ -488,6 +649,7 @@ public class DatabaseManager {
     	if (_storageMode == newStorageMode)
     		return;
     	
+    	final String[] reopen = suspendDatabases();
     	boolean transferSuccess = true;
     	try {
     		transfer(_storageMode, newStorageMode);
@@ -506,48 +668,283 @@ public class DatabaseManager {
 	    	edit.putBoolean(KEY_TRANSFER_SUCCESS, transferSuccess);
 	    	edit.commit();
 	    	_storageMode = newStorageMode;
+	    	resumeDatabases(reopen);
     	}
     }
     
+    //			        *********************************
+    // ================ *        Open Databases         * ==================
+    //                  *********************************
+
+    /**
+     * @param keepOpen True to keep every database opened with
+     * {@link #openDatabase(String)} open until it is closed by name, false to
+     * release the previous database on every open (the default)
+     */
+    public void setKeepOpen(boolean keepOpen) {
+    	_keepOpen = keepOpen;
+    }
+
+    /**
+     * Opens writable handles in SQLite's write-ahead log mode (the default),
+     * or with a rollback journal. In WAL mode the log names the pages written,
+     * so {@link ChecksumManifest checksum manifests} are updated &amp;
+     * verified by reading only those; with a journal every change means
+     * reading the whole file. Checksums &amp; cached versions are taken after
+     * checkpointing the log into the file. A database keeps the mode it was last opened
+     * writable with, so handles already open are not affected. Opening a
+     * database in WAL mode read-only, when storage is read-only, needs
+     * SQLite 3.22 or later.
+     * @param enabled False to use a rollback journal
+     */
+    public void setWriteAheadLoggingEnabled(boolean enabled) {
+    	_writeAheadLogging = enabled;
+    }
+
+    public boolean isWriteAheadLoggingEnabled() {
+    	return _writeAheadLogging;
+    }
+
     /**
-     * Opens a database. If there is already a database open with this
-     * DatabaseManager instance it will be closed.
+     * Opens a database &amp; makes it the current one. Unless
+     * {@link #setKeepOpen(boolean) keep open} is set, any database already
+     * open with this DatabaseManager instance is released.
      * @param dbName Name of the database to open
      * @throws SQLiteException If the file could not be opened
      */
     public void openDatabase(String dbName) throws SQLiteException {
-    	if (_database != null && _database.isOpen())
-    		_database.close();
-    	
-    	switch (_storageMode) {
-	    	case STORAGE_MODE_DEVICE:
-	    		_database = SQLiteDatabase.openDatabase(
-                        new File(_devicePath, dbName + ".s3db").getAbsolutePath(),
-                        null, SQLiteDatabase.OPEN_READWRITE
-                );
-	    		break;
-	    	case STORAGE_MODE_EXTERNAL:
-	    		_database = SQLiteDatabase.openDatabase(
-                        new File(_externalPath, dbName + ".s3db").getAbsolutePath(),
-                        null, SQLiteDatabase.OPEN_READWRITE
-                );
-	    		break;
+    	SQLiteDatabase db = _openDatabases.get(dbName);
+    	if (db == null) {
+    		if (!_keepOpen)
+    			close();
+
+    		final File file = getDatabaseFile(dbName);
+    		if (file == null)
+    			throw new IllegalStateException("Unknown storage mode");
+
+    		_checksumCache.remove(file);
+    		db = _registry.acquire(dbName, _storageMode, file, getWriteFlags());
+    		_openDatabases.put(dbName, db);
     	}
+
+    	_database = db;
+    	_databaseName = dbName;
     }
-    
+
     /**
-     * Closes current database instance.
+     * @param dbName Name of the database
+     * @return The database if it is open with this DatabaseManager, otherwise null
      */
-    public void close() {
-    	if (_database != null && _database.isOpen()) {
-    		_database.close();
+    public SQLiteDatabase getOpenDatabase(String dbName) {
+    	return _openDatabases.get(dbName);
+    }
+
+    /**
+     * Detaches all databases attached to the given one &amp; releases it. If
+     * it was the current database the most recently opened remaining one
+     * becomes current.
+     * @param dbName Name of the database
+     */
+    public void close(String dbName) {
+    	release(dbName);
+    	_attachments.remove(dbName);
+
+    	if (dbName.equals(_databaseName)) {
     		_database = null;
+    		_databaseName = null;
+    		for (Map.Entry<String, SQLiteDatabase> entry : _openDatabases.entrySet()) {
+    			_databaseName = entry.getKey();
+    			_database = entry.getValue();
+    		}
     	}
     }
+
+    /**
+     * Releases all databases opened with this DatabaseManager. A shared
+     * handle is closed once no one else uses it.
+     * @see DatabaseRegistry
+     */
+    public void close() {
+    	for (String dbName : _openDatabases.keySet().toArray(new String[_openDatabases.size()]))
+    		release(dbName);
+    	_attachments.clear();
+    	_database = null;
+    	_databaseName = null;
+    }
     
     public boolean isOpen() {
     	return _database != null && _database.isOpen();
     }
+
+    /**
+     * Attaches a sibling database in the current storage directory to an open
+     * database so both can be used in a single statement, e.g.
+     * <code>SELECT ... FROM comics JOIN progress.reads USING (comic_id)</code>.
+     * The attachment is kept until the database is closed &amp; restored when
+     * the storage mode changes.
+     * <br/><br/>
+     * Note that handles are shared, see {@link DatabaseRegistry}; the alias is
+     * visible to everyone using the database until it is detached.
+     * @param dbName Name of an open database
+     * @param siblingName Name of the database to attach
+     * @param alias Schema name for the attached database
+     * @throws SQLiteException If the database could not be attached
+     */
+    public void attachDatabase(String dbName, String siblingName, String alias)
+    		throws SQLiteException {
+    	final SQLiteDatabase db = _openDatabases.get(dbName);
+    	if (db == null)
+    		throw new IllegalStateException("Database " + dbName + " is not open");
+    	if (alias == null || !ALIAS_PATTERN.matcher(alias).matches()
+    			|| alias.equalsIgnoreCase("main") || alias.equalsIgnoreCase("temp"))
+    		throw new IllegalArgumentException("Invalid alias " + alias);
+
+    	LinkedHashMap<String, String> attached = _attachments.get(dbName);
+    	if (attached != null && attached.containsKey(alias))
+    		throw new IllegalArgumentException("Alias " + alias + " is already in use");
+
+    	attach(db, siblingName, alias);
+
+    	if (attached == null) {
+    		attached = new LinkedHashMap<String, String>();
+    		_attachments.put(dbName, attached);
+    	}
+    	attached.put(alias, siblingName);
+    }
+
+    /**
+     * Detaches a database attached with {@link #attachDatabase(String, String, String)}.
+     * @param dbName Name of an open database
+     * @param alias Schema name of the attached database
+     */
+    public void detachDatabase(String dbName, String alias) throws SQLiteException {
+    	final LinkedHashMap<String, String> attached = _attachments.get(dbName);
+    	if (attached == null || !attached.containsKey(alias))
+    		throw new IllegalArgumentException("Nothing attached as " + alias);
+
+    	final SQLiteDatabase db = _openDatabases.get(dbName);
+    	if (db != null)
+    		db.execSQL("DETACH DATABASE " + alias);
+    	attached.remove(alias);
+    }
+
+    /**
+     * @param dbName Name of an open database
+     * @return Names of the databases attached to it, keyed by alias
+     */
+    public Map<String, String> getAttachedDatabases(String dbName) {
+    	final LinkedHashMap<String, String> attached = _attachments.get(dbName);
+    	return attached == null
+    			? new LinkedHashMap<String, String>()
+    			: new LinkedHashMap<String, String>(attached);
+    }
+
+    private void attach(SQLiteDatabase db, String siblingName, String alias) {
+    	final File sibling = getDatabaseFile(siblingName);
+    	if (sibling == null || !sibling.exists())
+    		throw new IllegalArgumentException("Database " + siblingName + " does not exist");
+
+    	db.execSQL("ATTACH DATABASE ? AS " + alias, new Object[] { sibling.getAbsolutePath() });
+    }
+
+    /**
+     * Detaches everything attached to a database &amp; releases it, keeping
+     * the records of its attachments.
+     */
+    private void release(String dbName) {
+    	final SQLiteDatabase db = _openDatabases.remove(dbName);
+    	if (db == null)
+    		return;
+
+    	final LinkedHashMap<String, String> attached = _attachments.get(dbName);
+    	if (attached != null && db.isOpen()) {
+    		for (String alias : attached.keySet()) {
+    			try {
+    				db.execSQL("DETACH DATABASE " + alias);
+    			} catch (SQLiteException e) {
+    				Log.w(TAG, "Could not detach " + alias + " from " + dbName, e);
+    			}
+    		}
+    	}
+    	_registry.release(db);
+    }
+
+    /**
+     * Releases all open databases so their files can be moved.
+     * @return Names of the released databases, current one last
+     */
+    private String[] suspendDatabases() {
+    	final ArrayList<String> ret = new ArrayList<String>(_openDatabases.keySet());
+    	if (_databaseName != null) {
+    		ret.remove(_databaseName);
+    		ret.add(_databaseName);
+    	}
+
+    	for (String dbName : ret)
+    		release(dbName);
+    	_database = null;
+    	_databaseName = null;
+    	return ret.toArray(new String[ret.size()]);
+    }
+
+    /**
+     * Reopens databases released by {@link #suspendDatabases()} in the current
+     * storage mode &amp; restores their attachments. Databases that can no
+     * longer be opened are dropped.
+     */
+    private void resumeDatabases(String[] dbNames) {
+    	final boolean keepOpen = _keepOpen;
+    	_keepOpen = true;
+    	try {
+    		for (String dbName : dbNames) {
+    			final LinkedHashMap<String, String> attached = _attachments.remove(dbName);
+    			try {
+    				openDatabase(dbName);
+    			} catch (RuntimeException e) {
+    				Log.w(TAG, "Could not reopen " + dbName + " after storage change", e);
+    				continue;
+    			}
+
+    			if (attached == null)
+    				continue;
+    			for (Map.Entry<String, String> entry : attached.entrySet()) {
+    				try {
+    					attachDatabase(dbName, entry.getValue(), entry.getKey());
+    				} catch (RuntimeException e) {
+    					Log.w(TAG, "Could not reattach " + entry.getValue() + " to " + dbName, e);
+    				}
+    			}
+    		}
+    	} finally {
+    		_keepOpen = keepOpen;
+    	}
+    }
+
+    /**
+     * @return Absolute path of the database file in the current storage
+     * directory, identifying it to the {@link UpdateScheduler}
+     * @throws IllegalStateException If the storage mode is unknown
+     */
+    String getDatabasePath(String dbName) {
+    	final File file = getDatabaseFile(dbName);
+    	if (file == null)
+    		throw new IllegalStateException("Unknown storage mode");
+    	return file.getAbsolutePath();
+    }
+
+    /**
+     * @return The database file in the current storage directory, or null if
+     * the storage mode is unknown
+     */
+    private File getDatabaseFile(String dbName) {
+    	switch (_storageMode) {
+    		case STORAGE_MODE_DEVICE:
+    			return new File(_devicePath, dbName + ".s3db");
+    		case STORAGE_MODE_EXTERNAL:
+    			return new File(_externalPath, dbName + ".s3db");
+    	}
+    	return null;
+    }
     
     /**
      * Registers a change listener to receive callbacks from this {@link DatabaseManager}.
@@ -583,113 +980,197 @@ public class DatabaseManager {
     //                  *********************************
 
     /**
-     * Calculates an MD5 checksum on the given database file.
+     * Selects the algorithm used by {@link #calcChecksum(String)} &amp;
+     * {@link #storeChecksum(String)}. Stored checksums name their algorithm,
+     * so changing it does not invalidate existing .csm files.
+     * @param algorithm One of the FileChecksum.ALGORITHM_* constants, the
+     * default is {@link FileChecksum#ALGORITHM_MD5}
+     */
+    public void setChecksumAlgorithm(final int algorithm) {
+    	FileChecksum.getName(algorithm); // validates
+    	_checksumAlgorithm = algorithm;
+    }
+
+    public int getChecksumAlgorithm() {
+    	return _checksumAlgorithm;
+    }
+
+    /**
+     * Makes {@link #storeChecksum(String)} write a {@link ChecksumManifest}
+     * of per-chunk checksums instead of a single file checksum. Storing again
+     * after writes, &amp; {@link #checkIntegrity(String)}, only rehash the
+     * chunks SQLite wrote, as long as the database is in
+     * {@link #setWriteAheadLoggingEnabled(boolean) WAL mode} &amp; its log was
+     * not restarted in between; see {@link ChecksumManifest}.
+     * {@link #getDamagedRanges(String)} can locate corruption.
+     * @param enabled True to store manifests, off by default
+     */
+    public void setChecksumManifestEnabled(final boolean enabled) {
+    	_checksumManifest = enabled;
+    }
+
+    public boolean isChecksumManifestEnabled() {
+    	return _checksumManifest;
+    }
+
+    /**
+     * Calculates the checksum of the given database file with the current
+     * {@link #setChecksumAlgorithm(int) checksum algorithm}.
      * @param dbName Name of the database
-     * @return The MD5 checksum of the file or null if it does not exist
+     * @return The checksum as [algorithm]:[hex], e.g. md5:d41d8cd98f00b204e9800998ecf8427e,
+     * or null if the file does not exist
      * @throws NoSuchAlgorithmException 
      * @throws IOException 
+     * @see FileChecksum
      */
     public String calcChecksum(final String dbName)
             throws NoSuchAlgorithmException, IOException {
+    	return calcChecksum(dbName, _checksumAlgorithm);
+    }
+
+    /**
+     * Calculates the checksum of the given database file. Checksums are
+     * cached while the file stays unchanged &amp; no writable handle for it
+     * was handed out, so checking an untouched database again does not read
+     * it.
+     * @param dbName Name of the database
+     * @param algorithm One of the FileChecksum.ALGORITHM_* constants
+     * @return The checksum as [algorithm]:[hex] or null if the file does not exist
+     * @throws IOException
+     * @see #forceVerify(String)
+     */
+    public String calcChecksum(final String dbName, final int algorithm) throws IOException {
+    	return calcChecksum(dbName, algorithm, false, null);
+    }
+
+    private String calcChecksum(final String dbName, final int algorithm, final boolean force,
+    		final FileChecksum.Throttle throttle) throws IOException {
     	final File dbFile = getFile(dbName, false);
     	
-    	if (!dbFile.exists()) {
+    	if (!dbFile.exists())
     		return null;
-    	} else {
-	    	final FileInputStream fis = new FileInputStream(dbFile);
-	    	final MessageDigest md = MessageDigest.getInstance("MD5");
-	    	final byte[] dataBytes = new byte[1024];
-	     
-	        int len = 0; 
-	        while ((len = fis.read(dataBytes)) != -1) {
-	        	md.update(dataBytes, 0, len);
-	        }
-	     
-	        final byte[] mdbytes = md.digest();
-	        
-	        fis.close();
-	     
-	        // Convert the byte to hex format
-	        final StringBuilder sb = new StringBuilder();
-	        for (int i = 0; i < mdbytes.length; i++) {
-	        	sb.append(Integer.toString(mdbytes[i] & 0xff, 16).substring(1));
-	        }
-	     
-	    	return sb.toString();
+
+    	if (!force) {
+    		final String cached = _checksumCache.get(dbFile, FileChecksum.getName(algorithm));
+    		if (cached != null)
+    			return cached;
     	}
+
+    	checkpoint(dbName, dbFile);
+    	final ChecksumCache.Stamp stamp = _checksumCache.stamp(dbFile);
+    	final String ret = FileChecksum.format(algorithm,
+    			FileChecksum.digest(dbFile, algorithm, throttle));
+    	_checksumCache.put(dbFile, stamp, ret);
+    	return ret;
     }
     
     /**
-     * Calculates &amp; stores the MD5 checksum of the given database. 
+     * Calculates &amp; stores the checksum of the given database. 
      * The checksum file resides in the current database directory &amp; 
-     * is named in the format: [dbName].csm.
+     * is named in the format: [dbName].csm. It holds a single line
+     * [algorithm]:[hex] as returned by {@link #calcChecksum(String)}, or a
+     * {@link ChecksumManifest} if {@link #setChecksumManifestEnabled(boolean)
+     * manifests} are enabled. An existing manifest in the same algorithm is
+     * updated incrementally. Pages still in the write-ahead log are
+     * checkpointed into the file first; an IOException is thrown if readers
+     * keep that from completing.
      * @param dbName Name of the database
      * @throws NoSuchAlgorithmException
      * @throws IOException
      */
-    @SuppressWarnings("ResultOfMethodCallIgnored")
     public void storeChecksum(final String dbName)
             throws NoSuchAlgorithmException, IOException {
-    	final String checksum = calcChecksum(dbName);
-    	
-    	File ret;
-    	switch (_storageMode) {
-    		case STORAGE_MODE_DEVICE:
-    			ret = new File(_devicePath, dbName + ".csm");
-    			if (!ret.exists())
-    				ret.createNewFile();
-    			break;
-    		case STORAGE_MODE_EXTERNAL:
-    			ret = new File(_externalPath, dbName + ".csm");
-    			if (!ret.exists())
-    				ret.createNewFile();
-    			break;
-            default:
-                throw new IllegalStateException("Unknown storage mode");
+    	if (!_checksumManifest) {
+	    	final String checksum = calcChecksum(dbName);
+	    	if (checksum == null)
+	    		throw new FileNotFoundException("Database " + dbName + " does not exist");
+
+	    	writeChecksum(dbName, checksum);
+	    	return;
     	}
-    	
-    	final FileWriter ofstream = new FileWriter(ret);
-    	ofstream.write(checksum);
-    	ofstream.close();
+
+    	final File dbFile = getFile(dbName, false);
+    	if (!dbFile.exists())
+    		throw new FileNotFoundException("Database " + dbName + " does not exist");
+
+    	final ChecksumManifest.Wal wal = ChecksumManifest.Wal.read(dbFile);
+    	checkpoint(dbName, dbFile);
+    	final ChecksumCache.Stamp stamp = _checksumCache.stamp(dbFile);
+    	ChecksumManifest manifest = readManifest(dbName);
+    	if (manifest != null && manifest.getAlgorithm() == _checksumAlgorithm)
+    		manifest.update(dbFile, wal);
+    	else
+    		manifest = ChecksumManifest.create(dbFile, _checksumAlgorithm);
+
+    	manifest.write(getChecksumFile(dbName));
+    	_checksumCache.put(dbFile, stamp, manifest.getRootChecksum());
+    }
+
+    /**
+     * Compares the given database with its stored {@link ChecksumManifest}.
+     * This always reads the whole file.
+     * @param dbName Name of the database
+     * @return Byte ranges of the file that do not match the manifest as
+     * {start, end} pairs, empty if it matches, or null if there is no
+     * database or the stored checksum is not a manifest
+     * @throws IOException If the files could not be read or the manifest is malformed
+     * @see ChecksumManifest#verify(File)
+     */
+    public long[][] getDamagedRanges(final String dbName) throws IOException {
+    	return getDamagedRanges(dbName, null);
+    }
+
+    /**
+     * @param throttle Called before every block read, may be null
+     * @see #getDamagedRanges(String)
+     */
+    long[][] getDamagedRanges(final String dbName, final FileChecksum.Throttle throttle)
+    		throws IOException {
+    	final File dbFile = getFile(dbName, false);
+    	final ChecksumManifest manifest = readManifest(dbName);
+    	if (manifest == null || !dbFile.exists())
+    		return null;
+
+    	checkpoint(dbName, dbFile);
+    	final ChecksumCache.Stamp stamp = _checksumCache.stamp(dbFile);
+    	final long[][] ret = manifest.verify(dbFile, throttle);
+    	if (ret.length == 0)
+    		_checksumCache.put(dbFile, stamp, manifest.getRootChecksum());
+    	return ret;
     }
     
     /**
-     * Loads a stored MD5 checksum for the given database.
+     * Loads a stored checksum for the given database.
      * @param dbName Name of the database
-     * @return The loaded checksum or null if the .csm file is not found
+     * @return The loaded checksum or null if the .csm file is not found. Files
+     * written by this version hold [algorithm]:[hex], or for manifests
+     * manifest:[algorithm]:[root hex]; older files hold a bare MD5 value in a
+     * lossy hex form that {@link #checkIntegrity(String)} still verifies.
      * @throws IOException
      */
     public String loadChecksum(final String dbName) throws IOException {
-    	File ret;
-    	switch (_storageMode) {
-    		case STORAGE_MODE_DEVICE:
-    			ret = new File(_devicePath, dbName + ".csm");
-    			break;
-    		case STORAGE_MODE_EXTERNAL:
-    			ret = new File(_externalPath, dbName + ".csm");
-    			break;
-            default:
-                throw new IllegalStateException("Unknown storage mode");
-    	}
+    	final File file = getChecksumFile(dbName);
     	
-    	if (!ret.exists()) {
+    	if (!file.exists()) {
     		return null;
     	} else {
-	    	final FileReader ifstream = new FileReader(ret);
-	    	
-	    	final char[] buffer = new char[32];
-	    	ifstream.read(buffer);
-	    	final String checksum = new String(buffer);
-	    	
-	    	ifstream.close();
-	    	
-	    	return checksum;
+	    	final BufferedReader ifstream = new BufferedReader(new FileReader(file));
+	    	try {
+	    		final String checksum = ifstream.readLine();
+	    		return checksum == null ? "" : checksum.trim();
+	    	} finally {
+	    		ifstream.close();
+	    	}
     	}
     }
     
     /**
-     * Compares the stored MD5 checksum of the given database file 
-     * with its calculated checksum.
+     * Compares the stored checksum of the given database file 
+     * with its calculated checksum, using the algorithm named by the stored
+     * value. A stored checksum in the old MD5 format is rewritten in the
+     * current format once it verified. A stored manifest is only compared in
+     * the chunks SQLite wrote since, where that is known; use
+     * {@link #forceVerify(String)} to read the whole file.
      * @param dbName Name of the database
      * @return False if the stored &amp; calculated checksums do not match
      * @throws IOException
@@ -700,20 +1181,57 @@ public class DatabaseManager {
      */
     public boolean checkIntegrity(final String dbName)
             throws IOException, NoSuchAlgorithmException {
+    	return verify(dbName, false, null);
+    }
+
+    /**
+     * Like {@link #checkIntegrity(String)}, but always reads the whole file
+     * instead of trusting a cached checksum, e.g. after a crash or before
+     * restoring a backup. The result refreshes the cache.
+     * @param dbName Name of the database
+     * @return False if the stored &amp; calculated checksums do not match
+     * @throws IOException
+     */
+    public boolean forceVerify(final String dbName) throws IOException {
+    	return verify(dbName, true, null);
+    }
+
+    /**
+     * {@link #forceVerify(String)} reading through a throttle.
+     * @param throttle Called before every block read, may be null
+     */
+    boolean forceVerify(final String dbName, final FileChecksum.Throttle throttle)
+    		throws IOException {
+    	return verify(dbName, true, throttle);
+    }
+
+    private boolean verify(final String dbName, final boolean force,
+    		final FileChecksum.Throttle throttle) throws IOException {
     	final String storedChecksum = loadChecksum(dbName);
-    	final String calcedChecksum = calcChecksum(dbName);
-    	
-    	return 
-			calcedChecksum != null 
-			&& storedChecksum != null 
-			&& calcedChecksum.equalsIgnoreCase(storedChecksum);
+    	if (storedChecksum == null || storedChecksum.indexOf(':') >= 0)
+    		return verify(dbName, storedChecksum, force, throttle);
+
+    	// Written before checksums named their algorithm
+    	final String md5 = calcChecksum(dbName, FileChecksum.ALGORITHM_MD5, force, throttle);
+    	if (md5 == null)
+    		return false;
+
+    	final String hex = md5.substring(md5.indexOf(':') + 1);
+    	if (!storedChecksum.equalsIgnoreCase(FileChecksum.toLegacyHex(hex))
+    			&& !storedChecksum.equalsIgnoreCase(hex))
+    		return false;
+
+    	writeChecksum(dbName, md5);
+    	return true;
     }
 
     /**
-     * Calculates the MD5 checksum of the given database &amp; 
+     * Calculates the checksum of the given database &amp; 
      * compares it with the specified value.
      * @param dbName Name of the database
-     * @param checksum Expected checksum value as a 32 character hex string
+     * @param checksum Expected checksum as [algorithm]:[hex], the root of the
+     * stored manifest as manifest:[algorithm]:[hex], or an MD5 value as a 32
+     * character hex string
      * @return False if the calculated checksum does not match the expected value
      * @throws IOException
      * @throws NoSuchAlgorithmException
@@ -723,12 +1241,115 @@ public class DatabaseManager {
      */
     public boolean checkIntegrity(final String dbName, final String checksum)
             throws IOException, NoSuchAlgorithmException {
-    	final String calcedChecksum = calcChecksum(dbName);
+    	return verify(dbName, checksum, false, null);
+    }
+
+    private boolean verify(final String dbName, final String checksum, final boolean force,
+    		final FileChecksum.Throttle throttle) throws IOException {
+    	if (checksum == null)
+    		return false;
+
+    	if (checksum.startsWith(ChecksumManifest.NAME + ':')) {
+    		final File dbFile = getFile(dbName, false);
+    		if (!force && checksum.equalsIgnoreCase(_checksumCache.get(dbFile, ChecksumManifest.NAME)))
+    			return true;
+
+    		final ChecksumManifest manifest = readManifest(dbName);
+    		if (manifest == null || !manifest.getRootChecksum().equalsIgnoreCase(checksum))
+    			return false;
+    		if (force) {
+    			final long[][] damaged = getDamagedRanges(dbName, throttle);
+    			return damaged != null && damaged.length == 0;
+    		}
+
+    		// Only the chunks SQLite wrote since the manifest was stored
+    		if (!dbFile.exists())
+    			return false;
+    		final ChecksumManifest.Wal wal = ChecksumManifest.Wal.read(dbFile);
+    		checkpoint(dbName, dbFile);
+    		final ChecksumCache.Stamp stamp = _checksumCache.stamp(dbFile);
+    		if (manifest.verifyChanges(dbFile, wal, throttle).length > 0)
+    			return false;
+    		_checksumCache.put(dbFile, stamp, manifest.getRootChecksum());
+    		return true;
+    	}
+
+    	int algorithm = FileChecksum.ALGORITHM_MD5;
+    	String expected = checksum;
+    	final int split = checksum.indexOf(':');
+    	if (split >= 0) {
+    		algorithm = FileChecksum.getAlgorithm(checksum.substring(0, split));
+    		expected = checksum.substring(split + 1);
+    		if (algorithm < 0)
+    			return false;
+    	}
+
+    	final String calcedChecksum = calcChecksum(dbName, algorithm, force, throttle);
 
     	return 
 			calcedChecksum != null 
-			&& checksum != null 
-			&& calcedChecksum.equalsIgnoreCase(checksum);
+			&& calcedChecksum.substring(calcedChecksum.indexOf(':') + 1).equalsIgnoreCase(expected);
+    }
+
+    /**
+     * Runs SQLite's <code>PRAGMA quick_check</code> on the given database,
+     * which checks the structure of every page but not indices against
+     * their tables. Unlike a checksum this also finds damage that was
+     * already there when the checksum was stored.
+     * @param dbName Name of the database
+     * @return Problems reported by SQLite, empty if the database is intact
+     * @throws SQLiteException If the database could not be opened
+     */
+    public String[] quickCheck(final String dbName) throws SQLiteException {
+    	final File dbFile = getDatabaseFile(dbName);
+    	if (dbFile == null)
+    		throw new IllegalStateException("Unknown storage mode");
+
+    	final SQLiteDatabase db = _registry.acquire(dbName, _storageMode, dbFile, getReadFlags());
+    	try {
+    		final Cursor cursor = db.rawQuery("PRAGMA quick_check", null);
+    		try {
+    			final ArrayList<String> ret = new ArrayList<String>();
+    			while (cursor.moveToNext()) {
+    				final String row = cursor.getString(0);
+    				if (!"ok".equals(row))
+    					ret.add(row);
+    			}
+    			return ret.toArray(new String[ret.size()]);
+    		} finally {
+    			cursor.close();
+    		}
+    	} finally {
+    		_registry.release(db);
+    	}
+    }
+
+    private void writeChecksum(final String dbName, final String checksum) throws IOException {
+    	final FileWriter ofstream = new FileWriter(getChecksumFile(dbName));
+    	try {
+    		ofstream.write(checksum);
+    	} finally {
+    		ofstream.close();
+    	}
+    }
+
+    /**
+     * @return The stored manifest, or null if there is none
+     */
+    private ChecksumManifest readManifest(final String dbName) throws IOException {
+    	final File file = getChecksumFile(dbName);
+    	return file.exists() ? ChecksumManifest.read(file) : null;
+    }
+
+    private File getChecksumFile(final String dbName) {
+    	switch (_storageMode) {
+    		case STORAGE_MODE_DEVICE:
+    			return new File(_devicePath, dbName + ".csm");
+    		case STORAGE_MODE_EXTERNAL:
+    			return new File(_externalPath, dbName + ".csm");
+            default:
+                throw new IllegalStateException("Unknown storage mode");
+    	}
     }
     
 	//			        *********************************
@@ -750,6 +1371,15 @@ public class DatabaseManager {
 		
 		public void onError(Exception e);
 	}
+
+	/**
+	 * Completion listener that is also told the progress of a scheduled update,
+	 * on the update thread.
+	 * @see UpdateScheduler#reportProgress(float)
+	 */
+	public interface OnUpdateProgressListener extends OnUpdateCompleteListener {
+		public void onProgress(float progress);
+	}
 	
 	/**
 	 * Provides callback methods for change events dispatched by a {@link DatabaseManager} instance.
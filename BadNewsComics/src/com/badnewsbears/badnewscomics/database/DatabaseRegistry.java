@@ -0,0 +1,274 @@
+package com.badnewsbears.badnewscomics.database;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import android.annotation.TargetApi;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Process wide cache of open {@link SQLiteDatabase} handles, keyed by database
+ * name &amp; storage mode. Every {@link #acquire} hands out the shared handle
+ * for its key, opening it first if needed, &amp; must be paired with a
+ * {@link #release}. A handle whose last reference was released stays open for
+ * the idle timeout so that bursts of short operations do not reopen the file
+ * each time.
+ * <br/><br/>
+ * {@link SQLiteDatabase} is itself reference counted, so a handle passed on
+ * through {@link #share} stays usable after the registry closes its own
+ * reference; it is closed once its last holder calls close().
+ * <br/><br/>
+ * All methods are thread-safe.
+ */
+public class DatabaseRegistry {
+
+    private static final String TAG = DatabaseRegistry.class.getSimpleName();
+
+    public static final long DEFAULT_IDLE_TIMEOUT = 30 * 1000L;
+
+    private static DatabaseRegistry sInstance;
+
+    private final long _idleTimeout;
+    private final HashMap<String, Entry> _entries = new HashMap<String, Entry>();
+    private final IdentityHashMap<SQLiteDatabase, Entry> _handles =
+            new IdentityHashMap<SQLiteDatabase, Entry>();
+    private ScheduledExecutorService _timer;
+    private long _lastActivity;
+
+    private static class Entry {
+        final String key;
+        final SQLiteDatabase database;
+        final boolean readOnly;
+        int references;
+        boolean evicted;
+        ScheduledFuture<?> closer;
+
+        Entry(final String key, final SQLiteDatabase database, final boolean readOnly) {
+            this.key = key;
+            this.database = database;
+            this.readOnly = readOnly;
+        }
+    }
+
+    /**
+     * @return The registry shared by all {@link DatabaseManager}s of this process
+     */
+    public static synchronized DatabaseRegistry getInstance() {
+        if (sInstance == null)
+            sInstance = new DatabaseRegistry(DEFAULT_IDLE_TIMEOUT);
+        return sInstance;
+    }
+
+    /**
+     * @param idleTimeout Milliseconds an unreferenced handle stays open, 0 to
+     * close handles on their last release
+     */
+    public DatabaseRegistry(final long idleTimeout) {
+        if (idleTimeout < 0)
+            throw new IllegalArgumentException("Idle timeout must not be negative");
+        _idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Gets the shared handle for a database, opening it if it is not open yet.
+     * @param dbName Name of the database
+     * @param storageMode Storage mode the file belongs to
+     * @param file Database file
+     * @param flags {@link SQLiteDatabase#openDatabase} flags used if the file
+     * has to be opened. A handle opened with {@link SQLiteDatabase#OPEN_READONLY}
+     * is only shared with other read-only requests.
+     * @return The open database, to be passed to {@link #release} when done
+     * @throws IllegalStateException If a writable handle is requested while a
+     * read-only one is in use
+     */
+    public synchronized SQLiteDatabase acquire(final String dbName, final int storageMode,
+            final File file, final int flags) {
+        final String key = getKey(dbName, storageMode);
+        final boolean readOnly = (flags & SQLiteDatabase.OPEN_READONLY) != 0;
+
+        Entry entry = _entries.get(key);
+        if (entry != null && !entry.database.isOpen()) {
+            discard(entry);
+            entry = null;
+        }
+
+        if (entry != null && entry.readOnly && !readOnly) {
+            if (entry.references > 0)
+                throw new IllegalStateException("Database " + key + " is open read-only");
+            discard(entry);
+            entry = null;
+        }
+
+        if (entry == null) {
+            entry = new Entry(key, SQLiteDatabase.openDatabase(file.getAbsolutePath(), null, flags),
+                    readOnly);
+            _entries.put(key, entry);
+            _handles.put(entry.database, entry);
+        }
+
+        if (entry.closer != null) {
+            entry.closer.cancel(false);
+            entry.closer = null;
+        }
+
+        _lastActivity = SystemClock.elapsedRealtime();
+        entry.references++;
+        return entry.database;
+    }
+
+    /**
+     * Gets a handle the caller owns a reference of &amp; closes with
+     * {@link SQLiteDatabase#close()} instead of {@link #release}.
+     * @see #acquire(String, int, File, int)
+     */
+    public synchronized SQLiteDatabase share(final String dbName, final int storageMode,
+            final File file, final int flags) {
+        final SQLiteDatabase ret = acquire(dbName, storageMode, file, flags);
+        ret.acquireReference();
+        release(ret);
+        return ret;
+    }
+
+    /**
+     * Returns a handle obtained from {@link #acquire}. The last release closes
+     * it, after the idle timeout if there is one.
+     * @throws IllegalArgumentException If the handle is not from this registry
+     */
+    public synchronized void release(final SQLiteDatabase database) {
+        final Entry entry = _handles.get(database);
+        if (entry == null || entry.references == 0)
+            throw new IllegalArgumentException("Database was not acquired from this registry");
+
+        _lastActivity = SystemClock.elapsedRealtime();
+        if (--entry.references > 0)
+            return;
+
+        if (_idleTimeout == 0 || entry.evicted) {
+            discard(entry);
+            return;
+        }
+
+        entry.closer = getTimer().schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (DatabaseRegistry.this) {
+                    if (entry.references == 0 && _handles.get(entry.database) == entry)
+                        discard(entry);
+                }
+            }
+        }, _idleTimeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return {@link SystemClock#elapsedRealtime()} of the last acquire,
+     * release or {@link #notifyActivity()}, 0 if there was none
+     */
+    public synchronized long getLastActivity() {
+        return _lastActivity;
+    }
+
+    /**
+     * Reports database work the registry does not see, e.g. queries on a
+     * handle held since earlier, so background work such as the
+     * {@link IntegrityScrubber} keeps out of its way.
+     */
+    public synchronized void notifyActivity() {
+        _lastActivity = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * @return True if the registry holds an open handle for the database
+     */
+    public synchronized boolean isOpen(final String dbName, final int storageMode) {
+        final Entry entry = _entries.get(getKey(dbName, storageMode));
+        return entry != null && entry.database.isOpen();
+    }
+
+    /**
+     * @return Number of unreleased {@link #acquire} calls for the database
+     */
+    public synchronized int getReferenceCount(final String dbName, final int storageMode) {
+        final Entry entry = _entries.get(getKey(dbName, storageMode));
+        return entry == null ? 0 : entry.references;
+    }
+
+    /**
+     * Drops the registry's handle for a database, e.g. before its file is
+     * moved or deleted. Holders of outstanding references keep a usable
+     * handle until they release it; later acquires open a new one.
+     */
+    public synchronized void evict(final String dbName, final int storageMode) {
+        final Entry entry = _entries.get(getKey(dbName, storageMode));
+        if (entry != null)
+            evict(entry);
+    }
+
+    /**
+     * Drops the handles of all databases of a storage mode.
+     * @see #evict(String, int)
+     */
+    public synchronized void evictAll(final int storageMode) {
+        final String suffix = "@" + storageMode;
+        for (Entry entry : new ArrayList<Entry>(_entries.values())) {
+            if (entry.key.endsWith(suffix))
+                evict(entry);
+        }
+    }
+
+    private void evict(final Entry entry) {
+        if (_entries.get(entry.key) == entry)
+            _entries.remove(entry.key);
+        entry.evicted = true;
+
+        // Outstanding references close the handle on their last release
+        if (entry.references == 0)
+            discard(entry);
+        else
+            Log.w(TAG, "Evicting " + entry.key + " with " + entry.references + " open references");
+    }
+
+    private void discard(final Entry entry) {
+        if (entry.closer != null)
+            entry.closer.cancel(false);
+
+        if (_entries.get(entry.key) == entry)
+            _entries.remove(entry.key);
+        _handles.remove(entry.database);
+        if (entry.database.isOpen())
+            entry.database.close();
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private ScheduledExecutorService getTimer() {
+        if (_timer == null) {
+            final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1,
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            final Thread ret = new Thread(r, TAG);
+                            ret.setDaemon(true);
+                            return ret;
+                        }
+                    });
+            // Cancelled closers are harmless in the queue before API 21
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP)
+                timer.setRemoveOnCancelPolicy(true);
+            _timer = timer;
+        }
+        return _timer;
+    }
+
+    private static String getKey(final String dbName, final int storageMode) {
+        return dbName + '@' + storageMode;
+    }
+}
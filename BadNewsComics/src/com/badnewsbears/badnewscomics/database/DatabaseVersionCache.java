@@ -0,0 +1,87 @@
+package com.badnewsbears.badnewscomics.database;
+
+import java.io.File;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Remembers the <code>user_version</code> of database files so version checks
+ * do not have to open SQLite. Every entry records the size &amp; modification
+ * time of the file &amp; of its write-ahead log; an entry is only used while
+ * both still match, which costs a few stat calls instead of an open. A log
+ * that was emptied or deleted since matches, as its pages can only have left
+ * it by being copied into the file, which changes the file's time unless
+ * they were copied before. The manager checkpoints before recording, so
+ * closing the database does not change the file afterwards.
+ * <br/><br/>
+ * Versions changed through {@link DatabaseManager#runUpdates} are refreshed
+ * by the manager. Files modified within the timestamp granularity of their
+ * file system without changing size may go unnoticed, so code setting the
+ * version by other means should call {@link #remove(File)}.
+ */
+class DatabaseVersionCache {
+
+    static final int UNKNOWN = -1;
+
+    private static final String PREFERENCE_FILE_NAME = "dbmanager_versions";
+
+    private final SharedPreferences _preferences;
+
+    DatabaseVersionCache(final Context context) {
+        _preferences = context.getSharedPreferences(PREFERENCE_FILE_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @return The cached version of the file, or {@link #UNKNOWN} if there is
+     * none or the file changed since it was recorded
+     */
+    int get(final File file) {
+        final String entry = _preferences.getString(file.getAbsolutePath(), null);
+        if (entry == null)
+            return UNKNOWN;
+
+        final int split = entry.indexOf(':');
+        if (split < 0 || !matches(entry.substring(split + 1), file))
+            return UNKNOWN;
+
+        try {
+            return Integer.parseInt(entry.substring(0, split));
+        } catch (NumberFormatException e) {
+            return UNKNOWN;
+        }
+    }
+
+    /**
+     * Records the version of a file in its current state.
+     */
+    void put(final File file, final int version) {
+        _preferences.edit()
+                .putString(file.getAbsolutePath(), version + ":" + stat(file))
+                .apply();
+    }
+
+    void remove(final File file) {
+        _preferences.edit().remove(file.getAbsolutePath()).apply();
+    }
+
+    /**
+     * @return Size &amp; modification time of the file &amp; its WAL; both are 0
+     * for files that do not exist
+     */
+    private static String stat(final File file) {
+        final File wal = new File(file.getPath() + "-wal");
+        return file.length() + ":" + file.lastModified() + ":"
+                + wal.length() + ":" + wal.lastModified();
+    }
+
+    private static boolean matches(final String stat, final File file) {
+        final String head = file.length() + ":" + file.lastModified() + ":";
+        if (!stat.startsWith(head))
+            return false;
+
+        final File wal = new File(file.getPath() + "-wal");
+        return wal.length() == 0
+                || stat.substring(head.length()).equals(wal.length() + ":" + wal.lastModified());
+    }
+}
@@ -0,0 +1,325 @@
+package com.badnewsbears.badnewscomics.database;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Checksums of whole files in a selectable algorithm. Files are mapped into
+ * memory in windows of {@value #MAP_WINDOW} bytes &amp; hashed in large
+ * blocks straight from the page cache; if a file cannot be mapped it is read
+ * through a direct buffer instead.
+ * <br/><br/>
+ * Checksums are written as <code>[algorithm]:[hex]</code>, e.g.
+ * <code>crc32c:1a2b3c4d</code>, so a stored value names the algorithm needed
+ * to verify it. {@link #ALGORITHM_CRC32C} is the fastest &amp; catches
+ * accidental corruption; the digests also guard against deliberate changes.
+ */
+public final class FileChecksum {
+
+    public static final int ALGORITHM_CRC32C = 0;
+    public static final int ALGORITHM_MD5    = 1;
+    public static final int ALGORITHM_SHA256 = 2;
+
+    private static final String[] NAMES = { "crc32c", "md5", "sha256" };
+
+    private static final int MAP_WINDOW = 64 * 1024 * 1024;
+    private static final int BLOCK_SIZE = 256 * 1024;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /**
+     * Called before each block of a file is hashed, e.g. to limit the read
+     * rate. May block.
+     */
+    interface Throttle {
+        /**
+         * @throws IOException To abort hashing
+         */
+        void onRead(int bytes) throws IOException;
+    }
+
+    private FileChecksum() {}
+
+    /**
+     * @return Name of the algorithm as used in formatted checksums
+     * @throws IllegalArgumentException If the algorithm is unknown
+     */
+    public static String getName(final int algorithm) {
+        if (algorithm < 0 || algorithm >= NAMES.length)
+            throw new IllegalArgumentException("Unknown algorithm " + algorithm);
+        return NAMES[algorithm];
+    }
+
+    /**
+     * @param name Algorithm name as returned by {@link #getName(int)}
+     * @return The algorithm or -1 if the name is unknown
+     */
+    public static int getAlgorithm(final String name) {
+        for (int i = 0; i < NAMES.length; i++) {
+            if (NAMES[i].equalsIgnoreCase(name))
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Calculates the checksum of a file.
+     * @return The checksum as <code>[algorithm]:[hex]</code>
+     * @throws IOException If the file could not be read
+     */
+    public static String calculate(final File file, final int algorithm) throws IOException {
+        return format(algorithm, digest(file, algorithm));
+    }
+
+    /**
+     * @return The raw checksum of a file; CRC32C values are 4 bytes, big endian
+     * @throws IOException If the file could not be read
+     */
+    public static byte[] digest(final File file, final int algorithm) throws IOException {
+        return digest(file, algorithm, null);
+    }
+
+    /**
+     * @param throttle Called before every block, may be null
+     * @see #digest(File, int)
+     */
+    static byte[] digest(final File file, final int algorithm, final Throttle throttle)
+            throws IOException {
+        final Hasher hasher = newHasher(algorithm);
+
+        final FileInputStream in = new FileInputStream(file);
+        try {
+            final FileChannel channel = in.getChannel();
+            final long size = channel.size();
+            update(hasher, channel, 0, size, new byte[(int) Math.min(BLOCK_SIZE, Math.max(1, size))],
+                    throttle);
+        } finally {
+            in.close();
+        }
+        return hasher.digest();
+    }
+
+    /**
+     * @param block Scratch buffer, reused between calls
+     * @param throttle Called before every block, may be null
+     * @return The raw checksum of a range of a file
+     */
+    static byte[] digest(final FileChannel channel, final long position, final long length,
+            final int algorithm, final byte[] block, final Throttle throttle) throws IOException {
+        final Hasher hasher = newHasher(algorithm);
+        update(hasher, channel, position, length, block, throttle);
+        return hasher.digest();
+    }
+
+    /**
+     * @return The raw checksum of the bytes
+     */
+    static byte[] digest(final byte[] bytes, final int algorithm) {
+        final Hasher hasher = newHasher(algorithm);
+        hasher.update(bytes, 0, bytes.length);
+        return hasher.digest();
+    }
+
+    private static void update(final Hasher hasher, final FileChannel channel, long position,
+            final long length, final byte[] block, final Throttle throttle) throws IOException {
+        final long end = position + length;
+        while (position < end) {
+            final long window = Math.min(MAP_WINDOW, end - position);
+            final ByteBuffer buffer;
+            try {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, window);
+            } catch (IOException e) {
+                // Out of address space or not mappable; read this window
+                // through the block instead, as memory is likely short too
+                read(hasher, channel, position, window, block, throttle);
+                position += window;
+                continue;
+            }
+
+            while (buffer.hasRemaining()) {
+                final int n = Math.min(block.length, buffer.remaining());
+                if (throttle != null)
+                    throttle.onRead(n);
+                buffer.get(block, 0, n);
+                hasher.update(block, 0, n);
+            }
+            position += window;
+        }
+    }
+
+    /**
+     * @return The checksum as <code>[algorithm]:[hex]</code>
+     */
+    public static String format(final int algorithm, final byte[] digest) {
+        return getName(algorithm) + ':' + toHex(digest);
+    }
+
+    /**
+     * @return Lower case hex string of the bytes, two digits per byte
+     * @see #fromHex(String)
+     */
+    public static String toHex(final byte[] bytes) {
+        final char[] ret = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            ret[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            ret[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+        return new String(ret);
+    }
+
+    /**
+     * @return The bytes of a hex string as returned by {@link #toHex(byte[])}
+     * @throws IllegalArgumentException If the string is not valid hex
+     */
+    public static byte[] fromHex(final String hex) {
+        if (hex.length() % 2 != 0)
+            throw new IllegalArgumentException("Odd length hex string");
+
+        final byte[] ret = new byte[hex.length() / 2];
+        for (int i = 0; i < ret.length; i++) {
+            final int hi = Character.digit(hex.charAt(i * 2), 16);
+            final int lo = Character.digit(hex.charAt(i * 2 + 1), 16);
+            if (hi < 0 || lo < 0)
+                throw new IllegalArgumentException("Invalid hex string " + hex);
+            ret[i] = (byte) (hi << 4 | lo);
+        }
+        return ret;
+    }
+
+    /**
+     * Renders a digest the way checksum files were written before they named
+     * their algorithm: bytes below 16 vanish &amp; the others keep only their
+     * low digit. Only used to verify such files.
+     * @param hex Digest as returned by {@link #toHex(byte[])}
+     */
+    static String toLegacyHex(final String hex) {
+        final StringBuilder ret = new StringBuilder(hex.length() / 2);
+        for (int i = 0; i + 1 < hex.length(); i += 2) {
+            if (hex.charAt(i) != '0')
+                ret.append(hex.charAt(i + 1));
+        }
+        return ret.toString();
+    }
+
+    private static void read(final Hasher hasher, final FileChannel channel, long position,
+            final long length, final byte[] block, final Throttle throttle) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.wrap(block);
+        final long end = position + length;
+        while (position < end) {
+            final int n = (int) Math.min(block.length, end - position);
+            if (throttle != null)
+                throttle.onRead(n);
+
+            buffer.clear();
+            buffer.limit(n);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0)
+                    throw new IOException("File ended at " + (position + buffer.position()));
+            }
+            hasher.update(block, 0, n);
+            position += n;
+        }
+    }
+
+    private static Hasher newHasher(final int algorithm) {
+        switch (algorithm) {
+            case ALGORITHM_CRC32C:
+                return new Crc32cHasher();
+            case ALGORITHM_MD5:
+                return new DigestHasher("MD5");
+            case ALGORITHM_SHA256:
+                return new DigestHasher("SHA-256");
+            default:
+                throw new IllegalArgumentException("Unknown algorithm " + algorithm);
+        }
+    }
+
+    private interface Hasher {
+        void update(byte[] buffer, int offset, int length);
+        byte[] digest();
+    }
+
+    private static class DigestHasher implements Hasher {
+        private final MessageDigest _digest;
+
+        DigestHasher(final String algorithm) {
+            try {
+                _digest = MessageDigest.getInstance(algorithm);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(algorithm + " is not available", e);
+            }
+        }
+
+        @Override
+        public void update(final byte[] buffer, final int offset, final int length) {
+            _digest.update(buffer, offset, length);
+        }
+
+        @Override
+        public byte[] digest() {
+            return _digest.digest();
+        }
+    }
+
+    /**
+     * CRC-32C (Castagnoli) using slicing-by-8, eight bytes per table round.
+     * The platform only ships CRC32C from API 26.
+     */
+    private static class Crc32cHasher implements Hasher {
+        private static final int POLYNOMIAL = 0x82F63B78; // reflected
+
+        private static final int[][] TABLES = new int[8][256];
+        static {
+            for (int n = 0; n < 256; n++) {
+                int crc = n;
+                for (int k = 0; k < 8; k++)
+                    crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLYNOMIAL : crc >>> 1;
+                TABLES[0][n] = crc;
+            }
+            for (int n = 0; n < 256; n++) {
+                int crc = TABLES[0][n];
+                for (int t = 1; t < 8; t++) {
+                    crc = TABLES[0][crc & 0xff] ^ (crc >>> 8);
+                    TABLES[t][n] = crc;
+                }
+            }
+        }
+
+        private int _crc = 0xffffffff;
+
+        @Override
+        public void update(final byte[] buffer, int offset, final int length) {
+            final int[] t0 = TABLES[0], t1 = TABLES[1], t2 = TABLES[2], t3 = TABLES[3],
+                    t4 = TABLES[4], t5 = TABLES[5], t6 = TABLES[6], t7 = TABLES[7];
+            final int end = offset + length;
+            int crc = _crc;
+
+            for (; offset + 8 <= end; offset += 8) {
+                final int lo = crc ^ ((buffer[offset] & 0xff)
+                        | (buffer[offset + 1] & 0xff) << 8
+                        | (buffer[offset + 2] & 0xff) << 16
+                        | (buffer[offset + 3] & 0xff) << 24);
+                crc = t7[lo & 0xff] ^ t6[(lo >>> 8) & 0xff]
+                        ^ t5[(lo >>> 16) & 0xff] ^ t4[lo >>> 24]
+                        ^ t3[buffer[offset + 4] & 0xff] ^ t2[buffer[offset + 5] & 0xff]
+                        ^ t1[buffer[offset + 6] & 0xff] ^ t0[buffer[offset + 7] & 0xff];
+            }
+            for (; offset < end; offset++)
+                crc = t0[(crc ^ buffer[offset]) & 0xff] ^ (crc >>> 8);
+
+            _crc = crc;
+        }
+
+        @Override
+        public byte[] digest() {
+            final int crc = ~_crc;
+            return new byte[] {
+                    (byte) (crc >>> 24), (byte) (crc >>> 16), (byte) (crc >>> 8), (byte) crc };
+        }
+    }
+}
@@ -0,0 +1,439 @@
+package com.badnewsbears.badnewscomics.database;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import android.os.SystemClock;
+
+/**
+ * Copies a set of files into a directory on a bounded thread pool. Every file
+ * is moved in chunks until all of its bytes have arrived, so short transfers
+ * are never mistaken for complete ones, &amp; aggregate progress is reported
+ * to an {@link OnProgressListener} along the way. A transfer can be cancelled
+ * from any thread.
+ * <br/><br/>
+ * Files are written to <code>[name].part</code> next to their target. After
+ * every chunk the data is synced &amp; the chunk's end offset &amp; CRC32 are
+ * appended to <code>[name].journal</code>. Once a file is complete it is
+ * re-read &amp; checked against the journal, then renamed into place, so a
+ * crash never leaves a truncated target. Copying the same unchanged sources
+ * again resumes after the last journaled chunk &amp; skips files that were
+ * already renamed; call {@link #finish} once the sources are gone to remove
+ * the journals.
+ * <br/><br/>
+ * If any file fails the remaining copies are stopped &amp; the first error is
+ * thrown; partial files are kept for resuming. Sources are never modified.
+ */
+public class FileTransfer {
+
+    public static final int DEFAULT_THREADS = 2;
+
+    private static final long CHUNK_SIZE = 4L * 1024 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final String PART_SUFFIX = ".part";
+    private static final String JOURNAL_SUFFIX = ".journal";
+    private static final int JOURNAL_MAGIC = 0x464A524E; // "FJRN"
+    private static final long JOURNAL_COMPLETE = -1; // record offset once renamed
+    private static final long PROGRESS_INTERVAL = 100; // ms between progress reports
+
+    /**
+     * Receives transfer progress. Called from the copying threads, at most
+     * every {@value #PROGRESS_INTERVAL} ms &amp; once more when all files are
+     * done.
+     */
+    public interface OnProgressListener {
+        /**
+         * @param transferred Bytes copied so far over all files
+         * @param total Bytes to copy over all files
+         * @param bytesPerSecond Average throughput since the transfer started
+         */
+        public void onProgress(long transferred, long total, long bytesPerSecond);
+    }
+
+    private final int _threads;
+    private OnProgressListener _listener;
+    private volatile boolean _cancelled;
+
+    private final AtomicLong _transferred = new AtomicLong();
+    private long _total;
+    private long _start;
+    private long _lastReport;
+
+    /**
+     * @param threads Maximum number of files copied at once
+     */
+    public FileTransfer(final int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("threads must be positive");
+        _threads = threads;
+    }
+
+    public void setOnProgressListener(final OnProgressListener listener) {
+        _listener = listener;
+    }
+
+    /**
+     * Stops a running transfer; {@link #copy} throws a
+     * {@link CancellationException} once its workers noticed.
+     */
+    public void cancel() {
+        _cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return _cancelled;
+    }
+
+    /**
+     * Copies the given files into a directory, replacing files of the same
+     * name. Resumes an earlier, interrupted copy of the same files.
+     * @param sources Files to copy
+     * @param directory Destination directory
+     * @throws IOException If a file could not be copied
+     * @throws CancellationException If the transfer was cancelled
+     * @throws InterruptedException If the calling thread was interrupted
+     */
+    public void copy(final File[] sources, final File directory)
+            throws IOException, InterruptedException {
+        _transferred.set(0);
+        _total = 0;
+        for (File source : sources)
+            _total += source.length();
+        _start = _lastReport = SystemClock.elapsedRealtime();
+
+        final ExecutorService executor = Executors.newFixedThreadPool(
+                Math.max(1, Math.min(_threads, sources.length)));
+        final ArrayList<Future<Void>> futures = new ArrayList<Future<Void>>(sources.length);
+        try {
+            for (final File source : sources) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        boolean copied = false;
+                        try {
+                            copy(source, new File(directory, source.getName()));
+                            copied = true;
+                        } finally {
+                            if (!copied)
+                                _cancelled = true; // stop the other copies now
+                        }
+                        return null;
+                    }
+                }));
+            }
+
+            Throwable error = null;
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    // Copies stopped by another's failure must not hide it
+                    final Throwable cause = e.getCause();
+                    if (error == null || (error instanceof CancellationException
+                            && !(cause instanceof CancellationException)))
+                        error = cause;
+                } catch (InterruptedException e) {
+                    _cancelled = true;
+                    for (Future<Void> f : futures)
+                        f.cancel(true);
+                    throw e;
+                }
+            }
+
+            if (error instanceof IOException)
+                throw (IOException) error;
+            if (error instanceof RuntimeException)
+                throw (RuntimeException) error;
+            if (error instanceof Error)
+                throw (Error) error;
+        } finally {
+            executor.shutdownNow();
+        }
+
+        report(true);
+    }
+
+    /**
+     * Removes the journals of a finished transfer. Call this once the sources
+     * were deleted; until then copying them again skips completed files.
+     * @param sources Files passed to {@link #copy}
+     * @param directory Destination directory passed to {@link #copy}
+     */
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    public static void finish(final File[] sources, final File directory) {
+        for (File source : sources)
+            new File(directory, source.getName() + JOURNAL_SUFFIX).delete();
+    }
+
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    private void copy(final File source, final File target) throws IOException {
+        final File part = new File(target.getPath() + PART_SUFFIX);
+        final File journalFile = new File(target.getPath() + JOURNAL_SUFFIX);
+        final long size = source.length();
+
+        final Journal journal = Journal.read(journalFile, source);
+        if (journal.complete) {
+            if (target.exists() && target.length() == size) {
+                // Renamed by an earlier attempt
+                _transferred.addAndGet(size);
+                report(false);
+                return;
+            }
+            journal.clear();
+        }
+        if (part.length() < journal.end())
+            journal.clear();
+
+        long position = journal.end();
+        _transferred.addAndGet(position);
+
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        final CRC32 crc = new CRC32();
+        final RandomAccessFile log = journal.open(journalFile, source);
+        try {
+            final FileInputStream in = new FileInputStream(source);
+            try {
+                final RandomAccessFile out = new RandomAccessFile(part, "rw");
+                try {
+                    final FileChannel dst = out.getChannel();
+                    dst.truncate(position);
+
+                    while (position < size) {
+                        if (_cancelled)
+                            throw new CancellationException("Transfer cancelled");
+
+                        final long end = Math.min(position + CHUNK_SIZE, size);
+                        crc.reset();
+                        copy(in.getChannel(), dst, position, end, buffer, crc);
+
+                        // The data must be on disk before the journal claims it
+                        dst.force(false);
+                        journal.append(log, end, crc.getValue());
+
+                        _transferred.addAndGet(end - position);
+                        position = end;
+                        report(false);
+                    }
+                } finally {
+                    out.close();
+                }
+            } finally {
+                in.close();
+            }
+
+            if (!verify(part, journal, size, buffer, crc)) {
+                // Start over next time
+                log.close();
+                part.delete();
+                journalFile.delete();
+                throw new IOException("Verification of " + part + " failed");
+            }
+
+            if (!part.renameTo(target))
+                throw new IOException("Could not rename " + part + " to " + target.getName());
+            journal.append(log, JOURNAL_COMPLETE, 0);
+        } finally {
+            log.close();
+        }
+    }
+
+    /**
+     * Copies the bytes from position to end of the source to the same
+     * position in the target, adding them to the checksum.
+     */
+    private static void copy(final FileChannel source, final FileChannel target,
+            long position, final long end, final byte[] buffer, final CRC32 crc)
+            throws IOException {
+        final ByteBuffer buf = ByteBuffer.wrap(buffer);
+        while (position < end) {
+            buf.clear();
+            buf.limit((int) Math.min(buffer.length, end - position));
+            final int n = source.read(buf, position);
+            if (n <= 0)
+                throw new IOException("Source ended at " + position + " of " + end + " bytes");
+            crc.update(buffer, 0, n);
+
+            buf.flip();
+            long at = position;
+            while (buf.hasRemaining())
+                at += target.write(buf, at);
+            position += n;
+        }
+    }
+
+    /**
+     * Re-reads a finished part file &amp; compares every chunk with the CRC the
+     * journal recorded for it.
+     * @return False if the part file does not match the journal
+     */
+    private static boolean verify(final File part, final Journal journal, final long size,
+            final byte[] buffer, final CRC32 crc) throws IOException {
+        boolean valid = part.length() == size && journal.end() == size;
+
+        final FileInputStream in = new FileInputStream(part);
+        try {
+            final FileChannel channel = in.getChannel();
+            final ByteBuffer buf = ByteBuffer.wrap(buffer);
+            long position = 0;
+            for (int i = 0; valid && i < journal.size; i++) {
+                final long end = journal.ends[i];
+                crc.reset();
+                while (position < end) {
+                    buf.clear();
+                    buf.limit((int) Math.min(buffer.length, end - position));
+                    final int n = channel.read(buf, position);
+                    if (n <= 0)
+                        break;
+                    crc.update(buffer, 0, n);
+                    position += n;
+                }
+                valid = position == end && crc.getValue() == journal.crcs[i];
+            }
+        } finally {
+            in.close();
+        }
+
+        return valid;
+    }
+
+    /**
+     * Chunks of one target file that reached the disk. The journal file starts
+     * with a header identifying the source by length &amp; modification time,
+     * followed by one record of end offset &amp; CRC32 per chunk, in order. A
+     * record with offset {@value #JOURNAL_COMPLETE} marks a renamed target. A
+     * record cut short by a crash is ignored &amp; overwritten.
+     */
+    private static class Journal {
+        private static final int HEADER_SIZE = 4 + 8 + 8;
+        private static final int RECORD_SIZE = 8 + 8;
+
+        long[] ends = new long[8];
+        long[] crcs = new long[8];
+        int size;
+        boolean complete;
+
+        static Journal read(final File file, final File source) throws IOException {
+            final Journal ret = new Journal();
+            if (!file.exists())
+                return ret;
+
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file)));
+            try {
+                if (in.readInt() != JOURNAL_MAGIC || in.readLong() != source.length()
+                        || in.readLong() != source.lastModified())
+                    return ret;
+
+                while (true) {
+                    final long end = in.readLong();
+                    final long crc = in.readLong();
+                    if (end == JOURNAL_COMPLETE) {
+                        ret.complete = true;
+                        break;
+                    }
+                    if (end <= ret.end())
+                        break; // not written by us; keep what is consistent
+                    ret.add(end, crc);
+                }
+            } catch (EOFException e) {
+                // Header or last record incomplete
+            } finally {
+                in.close();
+            }
+            return ret;
+        }
+
+        /**
+         * @return Offset up to which the part file holds verified data
+         */
+        long end() {
+            return size == 0 ? 0 : ends[size - 1];
+        }
+
+        void clear() {
+            size = 0;
+            complete = false;
+        }
+
+        /**
+         * Opens the journal for appending, rewriting the header if it holds
+         * no records &amp; dropping anything after the last valid record.
+         */
+        RandomAccessFile open(final File file, final File source) throws IOException {
+            final RandomAccessFile ret = new RandomAccessFile(file, "rw");
+            try {
+                if (size == 0) {
+                    final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                    header.putInt(JOURNAL_MAGIC).putLong(source.length()).putLong(source.lastModified());
+                    ret.setLength(0);
+                    ret.write(header.array());
+                    ret.getFD().sync();
+                } else {
+                    ret.setLength(HEADER_SIZE + (long) size * RECORD_SIZE);
+                    ret.seek(ret.length());
+                }
+            } catch (IOException e) {
+                ret.close();
+                throw e;
+            }
+            return ret;
+        }
+
+        void append(final RandomAccessFile file, final long end, final long crc)
+                throws IOException {
+            final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+            record.putLong(end).putLong(crc);
+            file.write(record.array());
+            file.getFD().sync();
+
+            if (end == JOURNAL_COMPLETE)
+                complete = true;
+            else
+                add(end, crc);
+        }
+
+        private void add(final long end, final long crc) {
+            if (size == ends.length) {
+                ends = Arrays.copyOf(ends, size * 2);
+                crcs = Arrays.copyOf(crcs, size * 2);
+            }
+            ends[size] = end;
+            crcs[size] = crc;
+            size++;
+        }
+    }
+
+    private void report(final boolean done) {
+        final OnProgressListener listener = _listener;
+        if (listener == null)
+            return;
+
+        final long now = SystemClock.elapsedRealtime();
+        synchronized (this) {
+            if (!done && now - _lastReport < PROGRESS_INTERVAL)
+                return;
+            _lastReport = now;
+        }
+
+        final long transferred = _transferred.get();
+        listener.onProgress(transferred, _total, transferred * 1000 / Math.max(1, now - _start));
+    }
+}
@@ -0,0 +1,330 @@
+package com.badnewsbears.badnewscomics.database;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import android.database.sqlite.SQLiteException;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Periodically checks every database in the current storage directory of a
+ * {@link DatabaseManager}: the file is read in full &amp; compared with its
+ * stored checksum or {@link ChecksumManifest}, then SQLite's
+ * <code>PRAGMA quick_check</code> is run on it. Results are passed to an
+ * {@link OnScrubListener}, so damage is found before the app trips over it.
+ * <br/><br/>
+ * Reads are limited to {@link #setRateLimit(long)} bytes per second &amp;
+ * wait while there is foreground database activity, i.e. while the
+ * {@link DatabaseRegistry} saw an acquire, release or
+ * {@link DatabaseRegistry#notifyActivity()} within the
+ * {@link #setQuietPeriod(long) quiet period}. The quick check runs inside
+ * SQLite &amp; cannot be throttled; it only starts after a quiet period.
+ * <br/><br/>
+ * Passes run on a background thread of low priority. Call {@link #stop()}
+ * before changing the storage mode of the manager.
+ */
+public class IntegrityScrubber {
+
+    private static final String TAG = IntegrityScrubber.class.getSimpleName();
+
+    public static final long DEFAULT_RATE_LIMIT = 4L * 1024 * 1024; // bytes per second
+    public static final long DEFAULT_QUIET_PERIOD = 2000; // ms
+
+    /** The file matches its stored checksum. */
+    public static final int CHECKSUM_OK       = 0;
+    /** The file does not match its stored checksum. */
+    public static final int CHECKSUM_MISMATCH = 1;
+    /** No checksum is stored for the database. */
+    public static final int CHECKSUM_MISSING  = 2;
+    /** The file or checksum could not be read, see {@link Result#error}. */
+    public static final int CHECKSUM_ERROR    = 3;
+
+    public interface OnScrubListener {
+        /**
+         * Called on the scrubbing thread after each database.
+         */
+        public void onDatabaseChecked(Result result);
+
+        /**
+         * Called on the scrubbing thread after a pass over all databases.
+         * @param checked Number of databases checked
+         * @param damaged Number of those found damaged
+         */
+        public void onPassComplete(int checked, int damaged);
+    }
+
+    /**
+     * Outcome of checking one database.
+     */
+    public static class Result {
+        public final String dbName;
+        /** One of the CHECKSUM_* constants. */
+        public final int checksum;
+        /** Damaged byte ranges for databases with a manifest, otherwise null. */
+        public final long[][] damagedRanges;
+        /** Problems reported by the quick check, null if it failed to run. */
+        public final String[] quickCheck;
+        /** First error while checking, or null. */
+        public final Exception error;
+
+        Result(final String dbName, final int checksum, final long[][] damagedRanges,
+                final String[] quickCheck, final Exception error) {
+            this.dbName = dbName;
+            this.checksum = checksum;
+            this.damagedRanges = damagedRanges;
+            this.quickCheck = quickCheck;
+            this.error = error;
+        }
+
+        /**
+         * @return True if the checksum did not match or the quick check found problems
+         */
+        public boolean isDamaged() {
+            return checksum == CHECKSUM_MISMATCH || (quickCheck != null && quickCheck.length > 0);
+        }
+    }
+
+    private final DatabaseManager _manager;
+    private final DatabaseRegistry _registry = DatabaseRegistry.getInstance();
+
+    private volatile long _rateLimit = DEFAULT_RATE_LIMIT;
+    private volatile long _quietPeriod = DEFAULT_QUIET_PERIOD;
+    private volatile OnScrubListener _listener;
+
+    private ScheduledExecutorService _executor;
+    private ScheduledFuture<?> _schedule;
+
+    private final Object _scrubLock = new Object(); // one pass at a time
+
+    // Pacing of the running pass
+    private long _paceStart;
+    private long _paceBytes;
+    private long _ownActivity; // our own last registry use, not foreground activity
+
+    private final FileChecksum.Throttle _throttle = new FileChecksum.Throttle() {
+        @Override
+        public void onRead(final int bytes) throws IOException {
+            try {
+                if (awaitQuiet())
+                    restartPace();
+                pace(bytes);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Scrub interrupted");
+            }
+        }
+    };
+
+    /**
+     * @param manager Manager whose databases to check
+     */
+    public IntegrityScrubber(final DatabaseManager manager) {
+        if (manager == null)
+            throw new IllegalArgumentException("manager must not be null");
+        _manager = manager;
+    }
+
+    /**
+     * @param bytesPerSecond Maximum average read rate while hashing files
+     */
+    public void setRateLimit(final long bytesPerSecond) {
+        if (bytesPerSecond <= 0)
+            throw new IllegalArgumentException("Rate limit must be positive");
+        _rateLimit = bytesPerSecond;
+    }
+
+    /**
+     * @param millis Time without foreground database activity before reading
+     * continues, 0 to never wait
+     */
+    public void setQuietPeriod(final long millis) {
+        if (millis < 0)
+            throw new IllegalArgumentException("Quiet period must not be negative");
+        _quietPeriod = millis;
+    }
+
+    public void setOnScrubListener(final OnScrubListener listener) {
+        _listener = listener;
+    }
+
+    /**
+     * Starts scrubbing in the background, the first pass right away.
+     * @param interval Milliseconds between the end of a pass &amp; the start of the next
+     */
+    public synchronized void start(final long interval) {
+        if (interval <= 0)
+            throw new IllegalArgumentException("Interval must be positive");
+        if (_schedule != null)
+            throw new IllegalStateException("Scrubber is already running");
+
+        if (_executor == null) {
+            _executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    final Thread ret = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, TAG);
+                    ret.setDaemon(true);
+                    return ret;
+                }
+            });
+        }
+
+        _schedule = _executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                scrub();
+            }
+        }, 0, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops background scrubbing, interrupting a running pass.
+     */
+    public synchronized void stop() {
+        if (_schedule != null) {
+            _schedule.cancel(true);
+            _schedule = null;
+        }
+    }
+
+    public synchronized boolean isRunning() {
+        return _schedule != null;
+    }
+
+    /**
+     * Checks all databases once on the calling thread, throttled like a
+     * background pass. Waits for a running pass to finish first. An interrupt
+     * ends the pass early.
+     * @return Results of the databases checked
+     */
+    public Result[] scrub() {
+        synchronized (_scrubLock) {
+            return scrubLocked();
+        }
+    }
+
+    private Result[] scrubLocked() {
+        final String[] names = _manager.getDatabaseNames();
+        final ArrayList<Result> ret = new ArrayList<Result>(names.length);
+        int damaged = 0;
+
+        for (String dbName : names) {
+            final Result result;
+            try {
+                result = check(dbName);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                Log.d(TAG, "Pass interrupted");
+                return ret.toArray(new Result[ret.size()]);
+            }
+
+            ret.add(result);
+            if (result.isDamaged()) {
+                damaged++;
+                Log.w(TAG, "Database " + dbName + " is damaged");
+            }
+
+            final OnScrubListener listener = _listener;
+            if (listener != null)
+                listener.onDatabaseChecked(result);
+        }
+
+        final OnScrubListener listener = _listener;
+        if (listener != null)
+            listener.onPassComplete(ret.size(), damaged);
+        return ret.toArray(new Result[ret.size()]);
+    }
+
+    private Result check(final String dbName) throws InterruptedException {
+        int checksum;
+        long[][] damagedRanges = null;
+        String[] quickCheck = null;
+        Exception error = null;
+
+        awaitQuiet();
+        restartPace();
+        try {
+            final String stored = _manager.loadChecksum(dbName);
+            if (stored == null) {
+                checksum = CHECKSUM_MISSING;
+            } else if (stored.startsWith(ChecksumManifest.NAME + ':')) {
+                damagedRanges = _manager.getDamagedRanges(dbName, _throttle);
+                if (damagedRanges == null)
+                    checksum = CHECKSUM_MISSING;
+                else
+                    checksum = damagedRanges.length == 0 ? CHECKSUM_OK : CHECKSUM_MISMATCH;
+            } else {
+                checksum = _manager.forceVerify(dbName, _throttle) ? CHECKSUM_OK : CHECKSUM_MISMATCH;
+            }
+        } catch (InterruptedIOException e) {
+            throw new InterruptedException(e.getMessage());
+        } catch (IOException e) {
+            checksum = CHECKSUM_ERROR;
+            error = e;
+        }
+
+        awaitQuiet();
+        try {
+            quickCheck = _manager.quickCheck(dbName);
+        } catch (SQLiteException e) {
+            if (error == null)
+                error = e;
+        } finally {
+            _ownActivity = SystemClock.elapsedRealtime();
+        }
+
+        return new Result(dbName, checksum, damagedRanges, quickCheck, error);
+    }
+
+    /**
+     * Sleeps until the registry saw no foreground activity for the quiet period.
+     * @return True if it had to wait
+     */
+    private boolean awaitQuiet() throws InterruptedException {
+        boolean ret = false;
+        while (true) {
+            if (Thread.interrupted())
+                throw new InterruptedException();
+
+            final long last = _registry.getLastActivity();
+            final long idle = SystemClock.elapsedRealtime() - last;
+            if (last <= _ownActivity || idle >= _quietPeriod)
+                return ret;
+
+            Thread.sleep(_quietPeriod - idle);
+            ret = true;
+        }
+    }
+
+    /**
+     * Starts averaging the read rate anew, so pauses are not made up for
+     * with a burst.
+     */
+    private void restartPace() {
+        _paceStart = SystemClock.elapsedRealtime();
+        _paceBytes = 0;
+    }
+
+    /**
+     * Sleeps until reading the given bytes keeps the average rate at the limit.
+     */
+    private void pace(final int bytes) throws InterruptedException {
+        _paceBytes += bytes;
+        final long wait = _paceStart + _paceBytes * 1000 / _rateLimit - SystemClock.elapsedRealtime();
+        if (wait > 0)
+            Thread.sleep(wait);
+    }
+}
@@ -0,0 +1,404 @@
+package com.badnewsbears.badnewscomics.database;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import android.os.Process;
+import android.util.Log;
+
+import com.badnewsbears.badnewscomics.database.DatabaseManager.OnUpdateCompleteListener;
+import com.badnewsbears.badnewscomics.database.DatabaseManager.OnUpdateProgressListener;
+
+/**
+ * Process wide queue for {@link DatabaseManager#runUpdatesAsync}. Updates run
+ * on a bounded pool of background threads, one at a time per database file,
+ * in the order they were scheduled. A request for a file that already has an
+ * update with the same {@link DatabaseUpdateManager} waiting is merged into
+ * it: both callers share one {@link UpdateFuture} &amp; are notified once it
+ * ran. An update that is already running is never merged into, since it may
+ * have read the version before the new request was made.
+ * <br/><br/>
+ * {@link DatabaseManager#runUpdates} takes the same per-file lock, so
+ * synchronous updates do not race with scheduled ones either.
+ * <br/><br/>
+ * All methods are thread-safe.
+ */
+public class UpdateScheduler {
+
+    private static final String TAG = UpdateScheduler.class.getSimpleName();
+
+    public static final int DEFAULT_THREADS = 2;
+
+    private static UpdateScheduler sInstance;
+
+    private static final ThreadLocal<UpdateFuture> sCurrent = new ThreadLocal<UpdateFuture>();
+
+    private final ExecutorService _executor;
+    // file path -> updates not yet started, the head of each queue runs next
+    private final HashMap<String, ArrayDeque<UpdateFuture>> _pending =
+            new HashMap<String, ArrayDeque<UpdateFuture>>();
+    // file path -> running update
+    private final HashMap<String, UpdateFuture> _running = new HashMap<String, UpdateFuture>();
+
+    private static final HashMap<String, Object> sLocks = new HashMap<String, Object>();
+
+    /**
+     * Result of a scheduled update. Cancelling a waiting update removes it
+     * from the queue. A running update cannot be cancelled, as stopping it
+     * half way could leave a broken file: {@link #cancel} returns false, only
+     * interrupts its thread if asked to &amp; makes
+     * {@link UpdateScheduler#isCancelled()} return true for it. The future
+     * then reports what the update actually did once it returned, the same
+     * way {@link java.util.concurrent.FutureTask} does for a task that has
+     * already started. The next update of the same file waits until then.
+     */
+    public static class UpdateFuture implements Future<Void> {
+        public static final int STATE_PENDING = 0;
+        public static final int STATE_RUNNING = 1;
+        public static final int STATE_DONE    = 2;
+
+        final String key;
+        final String dbName;
+        final DatabaseManager databaseManager;
+        final DatabaseUpdateManager updateManager;
+        final ArrayList<OnUpdateCompleteListener> listeners = new ArrayList<OnUpdateCompleteListener>(1);
+
+        private final UpdateScheduler _scheduler;
+        private int _state = STATE_PENDING;
+        private boolean _cancelled;
+        // cancel() was called while running, the update may stop at a safe point
+        private boolean _cancelRequested;
+        private Throwable _error;
+        private float _progress;
+        private Thread _thread;
+
+        UpdateFuture(final UpdateScheduler scheduler, final String key, final String dbName,
+                final DatabaseManager databaseManager, final DatabaseUpdateManager updateManager) {
+            _scheduler = scheduler;
+            this.key = key;
+            this.dbName = dbName;
+            this.databaseManager = databaseManager;
+            this.updateManager = updateManager;
+        }
+
+        public String getDatabaseName() {
+            return dbName;
+        }
+
+        /**
+         * @return One of the STATE_* constants
+         */
+        public synchronized int getState() {
+            return _state;
+        }
+
+        /**
+         * @return Progress between 0 &amp; 1 as reported through
+         * {@link UpdateScheduler#reportProgress(float)}, 1 once done
+         */
+        public synchronized float getProgress() {
+            return _progress;
+        }
+
+        @Override
+        public boolean cancel(final boolean mayInterruptIfRunning) {
+            synchronized (this) {
+                if (_state == STATE_DONE || _cancelled)
+                    return false;
+                if (_state == STATE_RUNNING) {
+                    _cancelRequested = true;
+                    if (mayInterruptIfRunning && _thread != null)
+                        _thread.interrupt();
+                    return false;
+                }
+                _cancelled = true;
+            }
+
+            // Still waiting; drop it from the queue
+            _scheduler.remove(this);
+            finish(null);
+            return true;
+        }
+
+        @Override
+        public synchronized boolean isCancelled() {
+            return _cancelled;
+        }
+
+        @Override
+        public synchronized boolean isDone() {
+            return _state == STATE_DONE;
+        }
+
+        @Override
+        public synchronized Void get() throws InterruptedException, ExecutionException {
+            while (!isDone())
+                wait();
+            return result();
+        }
+
+        @Override
+        public synchronized Void get(final long timeout, final TimeUnit unit)
+                throws InterruptedException, ExecutionException, TimeoutException {
+            final long end = System.nanoTime() + unit.toNanos(timeout);
+            while (!isDone()) {
+                final long remaining = end - System.nanoTime();
+                if (remaining <= 0)
+                    throw new TimeoutException();
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            return result();
+        }
+
+        private Void result() throws ExecutionException {
+            if (_cancelled)
+                throw new CancellationException("Update of " + dbName + " was cancelled");
+            if (_error != null)
+                throw new ExecutionException(_error);
+            return null;
+        }
+
+        synchronized boolean isCancelRequested() {
+            return _cancelRequested;
+        }
+
+        void setProgress(float progress) {
+            progress = Math.max(0, Math.min(1, progress));
+            final OnUpdateCompleteListener[] listeners;
+            synchronized (this) {
+                _progress = progress;
+                listeners = this.listeners.toArray(new OnUpdateCompleteListener[this.listeners.size()]);
+            }
+            for (OnUpdateCompleteListener listener : listeners) {
+                if (listener instanceof OnUpdateProgressListener)
+                    ((OnUpdateProgressListener) listener).onProgress(progress);
+            }
+        }
+
+        void run() {
+            synchronized (this) {
+                if (_cancelled)
+                    return;
+                _state = STATE_RUNNING;
+                _thread = Thread.currentThread();
+            }
+
+            Throwable error = null;
+            sCurrent.set(this);
+            try {
+                databaseManager.runUpdates(dbName, updateManager);
+            } catch (Throwable e) {
+                error = e;
+            } finally {
+                sCurrent.remove();
+                synchronized (this) {
+                    _thread = null;
+                }
+                Thread.interrupted(); // don't leak a cancel into the next update
+            }
+
+            try {
+                if (error == null)
+                    setProgress(1);
+            } finally {
+                finish(error);
+            }
+            // Still reach the thread's uncaught exception handler
+            if (error instanceof Error)
+                throw (Error) error;
+        }
+
+        private void finish(final Throwable error) {
+            final OnUpdateCompleteListener[] listeners;
+            final boolean cancelled;
+            synchronized (this) {
+                _state = STATE_DONE;
+                _error = error;
+                cancelled = _cancelled;
+                listeners = this.listeners.toArray(new OnUpdateCompleteListener[this.listeners.size()]);
+                notifyAll();
+            }
+
+            for (OnUpdateCompleteListener listener : listeners) {
+                if (cancelled)
+                    listener.onError(new CancellationException("Update of " + dbName + " was cancelled"));
+                else if (error instanceof Exception)
+                    listener.onError((Exception) error);
+                else if (error != null)
+                    listener.onError(new ExecutionException(error));
+                else
+                    listener.onComplete();
+            }
+        }
+    }
+
+    /**
+     * @return The scheduler shared by all {@link DatabaseManager}s of this process
+     */
+    public static synchronized UpdateScheduler getInstance() {
+        if (sInstance == null)
+            sInstance = new UpdateScheduler(DEFAULT_THREADS);
+        return sInstance;
+    }
+
+    /**
+     * @param threads Maximum number of databases updated at once
+     */
+    public UpdateScheduler(final int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("threads must be positive");
+
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        final Thread ret = new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        }, TAG);
+                        ret.setDaemon(true);
+                        return ret;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        _executor = executor;
+    }
+
+    /**
+     * Reports the progress of the update running on the calling thread, for
+     * {@link DatabaseUpdateManager}s with long running onCreate() or
+     * onUpgrade() methods. Does nothing outside of scheduled updates.
+     * @param progress Progress between 0 &amp; 1
+     */
+    public static void reportProgress(final float progress) {
+        final UpdateFuture current = sCurrent.get();
+        if (current != null)
+            current.setProgress(progress);
+    }
+
+    /**
+     * @return True if {@link UpdateFuture#cancel} was called for the update
+     * running on the calling thread; long running updates may check this to
+     * stop at a safe point by throwing. Returning normally reports the update
+     * as complete.
+     */
+    public static boolean isCancelled() {
+        final UpdateFuture current = sCurrent.get();
+        return current != null && current.isCancelRequested();
+    }
+
+    /**
+     * Queues {@link DatabaseManager#runUpdates} for a database.
+     * @param listener Notified on the update thread when done, may be null.
+     * {@link OnUpdateProgressListener}s also receive progress. An Error thrown
+     * by the update reaches onError() wrapped in an ExecutionException.
+     * @return The queued update, or the waiting one it was merged into
+     */
+    public UpdateFuture schedule(final DatabaseManager databaseManager, final String dbName,
+            final DatabaseUpdateManager updateManager, final OnUpdateCompleteListener listener) {
+        final String key = databaseManager.getDatabasePath(dbName);
+
+        final UpdateFuture ret;
+        final boolean start;
+        synchronized (this) {
+            ArrayDeque<UpdateFuture> queue = _pending.get(key);
+            final UpdateFuture last = queue == null ? null : queue.peekLast();
+            if (last != null && last.updateManager == updateManager && addListener(last, listener)) {
+                Log.d(TAG, "Merged update of " + dbName + " into the waiting one");
+                return last;
+            }
+
+            ret = new UpdateFuture(this, key, dbName, databaseManager, updateManager);
+            if (listener != null)
+                ret.listeners.add(listener);
+
+            if (queue == null) {
+                queue = new ArrayDeque<UpdateFuture>();
+                _pending.put(key, queue);
+            }
+            queue.add(ret);
+            start = !_running.containsKey(key) && queue.size() == 1;
+            if (start)
+                _running.put(key, queue.poll());
+        }
+
+        if (start)
+            submit(ret);
+        return ret;
+    }
+
+    /**
+     * @return Lock held while a database file is updated, shared by all schedulers
+     */
+    static Object getLock(final String key) {
+        synchronized (sLocks) {
+            Object ret = sLocks.get(key);
+            if (ret == null) {
+                ret = new Object();
+                sLocks.put(key, ret);
+            }
+            return ret;
+        }
+    }
+
+    private static boolean addListener(final UpdateFuture future, final OnUpdateCompleteListener listener) {
+        synchronized (future) {
+            if (future.getState() != UpdateFuture.STATE_PENDING || future.isCancelled())
+                return false;
+            if (listener != null)
+                future.listeners.add(listener);
+            return true;
+        }
+    }
+
+    private void submit(final UpdateFuture future) {
+        _executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    future.run();
+                } finally {
+                    next(future.key);
+                }
+            }
+        });
+    }
+
+    /**
+     * Starts the next waiting update of a file once the running one returned.
+     */
+    private void next(final String key) {
+        final UpdateFuture next;
+        synchronized (this) {
+            final ArrayDeque<UpdateFuture> queue = _pending.get(key);
+            next = queue == null ? null : queue.poll();
+            if (next == null) {
+                _pending.remove(key);
+                _running.remove(key);
+                return;
+            }
+            _running.put(key, next);
+        }
+        submit(next);
+    }
+
+    private synchronized void remove(final UpdateFuture future) {
+        final ArrayDeque<UpdateFuture> queue = _pending.get(future.key);
+        if (queue != null)
+            queue.remove(future);
+    }
+}
@@ -0,0 +1,611 @@
+package com.badnewsbears.badnewscomics.database;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.xml.sax.SAXException;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.badnewsbears.badnewscomics.xml.NodeVisitor;
+import com.badnewsbears.badnewscomics.xml.XmlNode;
+import com.badnewsbears.badnewscomics.xml.XmlQuery;
+import com.badnewsbears.badnewscomics.xml.XmlStreamParser;
+
+/**
+ * Bulk loader moving XML documents into a database handled by a
+ * {@link DatabaseManager}. Element paths are mapped to tables &amp; the
+ * attributes or child elements of every matched element to columns:
+ * <pre>
+ * importer.map("catalog/comic", "comics", XmlImporter.CONFLICT_UPSERT)
+ *         .column("id", "@id")
+ *         .column("title", "title")
+ *         .column("series", "series/@name")
+ *         .key("id");
+ * </pre>
+ * Streams are read through an {@link XmlStreamParser}, so only the element
+ * being imported is held in memory. Statements are compiled once per import
+ * &amp; rows are committed in transactions of {@link #setChunkSize(int)} rows.
+ * A failed import rolls back the current chunk only; earlier chunks stay
+ * committed.
+ * <br/><br/>
+ * Column sources are relative to the matched element: <code>@name</code> is
+ * one of its attributes, <code>a/b</code> the text of a descendant,
+ * <code>a/b/@name</code> an attribute of a descendant &amp; <code>.</code>
+ * its own text. Element names compare case-insensitively; missing values are
+ * bound as NULL. Mappings may be nested, e.g. <code>catalog/comic</code> &amp;
+ * <code>catalog/comic/credit</code>; inner rows are written right after the
+ * row of their outer element.
+ */
+public class XmlImporter {
+
+    private static final String TAG = XmlImporter.class.getSimpleName();
+
+    /** Skip rows violating a unique constraint. */
+    public static final int CONFLICT_IGNORE  = 0;
+    /** Delete conflicting rows before inserting. */
+    public static final int CONFLICT_REPLACE = 1;
+    /** Update rows with matching {@link Mapping#key(String) keys} in place, insert the others. */
+    public static final int CONFLICT_UPSERT  = 2;
+
+    public static final int DEFAULT_CHUNK_SIZE = 1000;
+
+    private final DatabaseManager _manager;
+    private final String _dbName;
+    private final ArrayList<Mapping> _mappings = new ArrayList<Mapping>();
+
+    private int _chunkSize = DEFAULT_CHUNK_SIZE;
+    private int _parseOptions = XmlNode.PARSE_TRIM_WHITESPACE | XmlNode.PARSE_DROP_CONTAINER_TEXT;
+
+    /**
+     * @param manager Manager owning the database
+     * @param dbName Name of the database to import into, see
+     * {@link DatabaseManager#getDatabase(String)}
+     */
+    public XmlImporter(final DatabaseManager manager, final String dbName) {
+        if (manager == null || dbName == null)
+            throw new IllegalArgumentException("manager and dbName must not be null");
+
+        _manager = manager;
+        _dbName = dbName;
+    }
+
+    /**
+     * @param rows Rows per transaction. Larger chunks are faster, smaller
+     * ones hold the database lock for shorter periods.
+     */
+    public void setChunkSize(final int rows) {
+        if (rows < 1)
+            throw new IllegalArgumentException("Chunk size must be positive");
+        _chunkSize = rows;
+    }
+
+    /**
+     * @param options Text handling options as for {@link XmlNode#parse(InputStream, int)}.
+     * Whitespace-only &amp; container text is dropped by default.
+     */
+    public void setParseOptions(final int options) {
+        _parseOptions = options;
+    }
+
+    /**
+     * Maps every element at the given path to a row of a table.
+     * @param path Slash separated element path starting at the document
+     * element, as for {@link XmlStreamParser#register(String, NodeVisitor)}
+     * @param table Destination table
+     * @param conflict One of {@link #CONFLICT_IGNORE}, {@link #CONFLICT_REPLACE},
+     * {@link #CONFLICT_UPSERT}
+     * @return The mapping, to add columns to
+     */
+    public Mapping map(final String path, final String table, final int conflict) {
+        if (path == null || table == null)
+            throw new IllegalArgumentException("path and table must not be null");
+        if (conflict < CONFLICT_IGNORE || conflict > CONFLICT_UPSERT)
+            throw new IllegalArgumentException("Invalid conflict mode " + conflict);
+
+        final Mapping ret = new Mapping(path, table, conflict);
+        _mappings.add(ret);
+        return ret;
+    }
+
+    //			        *********************************
+    // ================ *            Import             * ==================
+    //                  *********************************
+
+    /**
+     * Streams a document into the database.
+     * @param in XML source, not closed
+     * @return Statistics of the import
+     * @throws IOException If the database cannot be opened or the stream read
+     */
+    public Stats importFrom(final InputStream in) throws IOException,
+            ParserConfigurationException, SAXException {
+        final Session session = open();
+        try {
+            final XmlStreamParser parser = new XmlStreamParser();
+            parser.setOptions(_parseOptions);
+            for (final TableWriter writer : session.writers) {
+                if (writer.outer)
+                    parser.register(writer.mapping.path, new NodeVisitor() {
+                        @Override
+                        public void visit(XmlNode node) {
+                            session.write(writer, node);
+                        }
+                    });
+            }
+
+            parser.parse(in);
+            return session.finish();
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * Imports an already parsed document.
+     * @param document The document element, as returned by {@link XmlNode#parse(InputStream)}
+     * @return Statistics of the import
+     * @throws IOException If the database cannot be opened
+     */
+    public Stats importFrom(final XmlNode document) throws IOException {
+        final Session session = open();
+        try {
+            for (TableWriter writer : session.writers) {
+                final String[] segments = writer.mapping.segments;
+                if (!writer.outer
+                        || (!"*".equals(segments[0]) && !segments[0].equalsIgnoreCase(document.getName())))
+                    continue;
+
+                if (segments.length == 1) {
+                    session.write(writer, document);
+                    continue;
+                }
+
+                for (XmlNode node : XmlQuery.compile(join(segments, 1)).select(document))
+                    session.write(writer, node);
+            }
+
+            return session.finish();
+        } finally {
+            session.close();
+        }
+    }
+
+    private Session open() throws IOException {
+        if (_mappings.isEmpty())
+            throw new IllegalStateException("No mappings registered");
+
+        final SQLiteDatabase db = _manager.getDatabase(_dbName);
+        final Session ret = new Session(db);
+        try {
+            for (Mapping mapping : _mappings)
+                ret.writers.add(new TableWriter(db, mapping));
+        } catch (RuntimeException e) {
+            ret.close();
+            throw e;
+        }
+
+        // Paths inside another mapped element are not reported separately by
+        // the stream parser; they are imported from their outer match instead
+        for (TableWriter inner : ret.writers) {
+            for (TableWriter outer : ret.writers) {
+                if (outer != inner && outer.contains(inner)) {
+                    outer.addNested(inner);
+                    inner.outer = false;
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * State of a single import: the open database, its compiled statements
+     * &amp; the current transaction.
+     */
+    private class Session {
+
+        final SQLiteDatabase db;
+        final ArrayList<TableWriter> writers = new ArrayList<TableWriter>();
+        final LinkedHashSet<String> changedTables = new LinkedHashSet<String>();
+        final long start = SystemClock.elapsedRealtime();
+
+        long inserted, updated, skipped;
+        int chunkRows;
+        int chunks;
+        // Set apart from chunkRows, which only counts rows written without error
+        boolean inTransaction;
+
+        Session(final SQLiteDatabase db) {
+            this.db = db;
+        }
+
+        void write(final TableWriter writer, final XmlNode node) {
+            write(writer, node, true);
+        }
+
+        /**
+         * @param nested True to also import the elements of mappings nested
+         * in the given one. Nested mappings are resolved relative to their
+         * outermost mapping, so they must not be followed again.
+         */
+        private void write(final TableWriter writer, final XmlNode node, final boolean nested) {
+            if (!inTransaction) {
+                db.beginTransaction();
+                inTransaction = true;
+            }
+
+            switch (writer.write(node)) {
+                case TableWriter.INSERTED: inserted++; break;
+                case TableWriter.UPDATED:  updated++;  break;
+                default:                   skipped++;
+            }
+            changedTables.add(writer.mapping.table);
+
+            if (++chunkRows == _chunkSize)
+                commit();
+
+            if (!nested)
+                return;
+
+            for (int i = 0; i < writer.nested.size(); i++) {
+                for (XmlNode match : writer.nestedQueries.get(i).select(node))
+                    write(writer.nested.get(i), match, false);
+            }
+        }
+
+        void commit() {
+            if (!inTransaction)
+                return;
+
+            db.setTransactionSuccessful();
+            db.endTransaction();
+            inTransaction = false;
+            chunkRows = 0;
+            chunks++;
+        }
+
+        Stats finish() {
+            commit();
+
+            final Stats ret = new Stats(inserted, updated, skipped, chunks,
+                    SystemClock.elapsedRealtime() - start);
+            Log.d(TAG, "Imported into " + _dbName + ": " + ret);
+
+            for (String table : changedTables)
+                _manager.onTableChanged(table);
+            return ret;
+        }
+
+        void close() {
+            if (inTransaction) {
+                db.endTransaction(); // not successful, rolls back the chunk
+                inTransaction = false;
+                chunkRows = 0;
+            }
+
+            for (TableWriter writer : writers)
+                writer.close();
+            db.close();
+        }
+    }
+
+    //			        *********************************
+    // ================ *           Mappings            * ==================
+    //                  *********************************
+
+    /**
+     * Element to table mapping, see {@link XmlImporter#map(String, String, int)}.
+     */
+    public static class Mapping {
+
+        private final String path;
+        private final String[] segments;
+        private final String table;
+        private final int conflict;
+
+        private final ArrayList<String> columns = new ArrayList<String>();
+        private final ArrayList<Source> sources = new ArrayList<Source>();
+        private final ArrayList<String> keys = new ArrayList<String>();
+
+        private Mapping(final String path, final String table, final int conflict) {
+            this.path = path;
+            this.table = table;
+            this.conflict = conflict;
+
+            segments = trimSlashes(path).split("/");
+            for (String segment : segments) {
+                if (segment.length() == 0)
+                    throw new IllegalArgumentException("Invalid element path: " + path);
+            }
+        }
+
+        /**
+         * @param column Destination column
+         * @param source Value source relative to the matched element, see {@link XmlImporter}
+         */
+        public Mapping column(final String column, final String source) {
+            if (column == null || source == null)
+                throw new IllegalArgumentException("column and source must not be null");
+
+            columns.add(column);
+            sources.add(new Source(source));
+            return this;
+        }
+
+        /**
+         * Marks a mapped column as part of the key identifying existing rows
+         * for {@link XmlImporter#CONFLICT_UPSERT}.
+         */
+        public Mapping key(final String column) {
+            if (!columns.contains(column))
+                throw new IllegalArgumentException("Unmapped key column " + column);
+
+            keys.add(column);
+            return this;
+        }
+    }
+
+    /**
+     * Compiled column source: an element path below the matched element &amp;
+     * an optional attribute name.
+     */
+    private static class Source {
+
+        private static final String[] SELF = new String[0];
+
+        private final String[] elements;
+        private final String attribute;
+
+        Source(final String source) {
+            String path = trimSlashes(source);
+            final int at = path.lastIndexOf('@');
+            if (at >= 0) {
+                if (at > 0 && path.charAt(at - 1) != '/')
+                    throw new IllegalArgumentException("Invalid column source: " + source);
+                attribute = path.substring(at + 1);
+                path = trimSlashes(path.substring(0, at));
+            } else {
+                attribute = null;
+            }
+
+            elements = path.length() == 0 || ".".equals(path) ? SELF : path.split("/");
+        }
+
+        String get(XmlNode node) {
+            for (String element : elements) {
+                node = node.findChild(element);
+                if (node == null)
+                    return null;
+            }
+            return attribute != null ? node.getAttributeValue(attribute) : node.getValue();
+        }
+    }
+
+    /**
+     * Compiled statements of one mapping.
+     */
+    private static class TableWriter {
+
+        static final int INSERTED = 0, UPDATED = 1, SKIPPED = 2;
+
+        final Mapping mapping;
+        final Source[] sources;
+        final String[] values;
+        final SQLiteStatement insert;
+        final SQLiteStatement update; // upserts only
+        final int[] updateOrder; // value index per update parameter
+
+        boolean outer = true; // not inside the path of another mapping
+        final ArrayList<TableWriter> nested = new ArrayList<TableWriter>();
+        final ArrayList<XmlQuery> nestedQueries = new ArrayList<XmlQuery>();
+
+        TableWriter(final SQLiteDatabase db, final Mapping mapping) {
+            if (mapping.columns.isEmpty())
+                throw new IllegalStateException("No columns mapped for " + mapping.path);
+            if (mapping.conflict == CONFLICT_UPSERT && mapping.keys.isEmpty())
+                throw new IllegalStateException("Upsert of " + mapping.path + " requires a key column");
+
+            this.mapping = mapping;
+            sources = mapping.sources.toArray(new Source[mapping.sources.size()]);
+            values = new String[sources.length];
+
+            final int count = mapping.columns.size();
+            final StringBuilder sql = new StringBuilder(mapping.conflict == CONFLICT_REPLACE
+                    ? "INSERT OR REPLACE INTO " : "INSERT OR IGNORE INTO ");
+            sql.append(quote(mapping.table)).append(" (");
+            for (int i = 0; i < count; i++) {
+                if (i > 0)
+                    sql.append(", ");
+                sql.append(quote(mapping.columns.get(i)));
+            }
+            sql.append(") VALUES (");
+            for (int i = 0; i < count; i++)
+                sql.append(i > 0 ? ", ?" : "?");
+            sql.append(')');
+
+            if (mapping.conflict != CONFLICT_UPSERT || mapping.keys.size() == count) {
+                insert = db.compileStatement(sql.toString());
+                update = null;
+                updateOrder = null;
+                return;
+            }
+
+            // UPDATE .. SET <other columns> WHERE <keys>, falling back to the insert
+            updateOrder = new int[count];
+            final StringBuilder set = new StringBuilder();
+            final StringBuilder where = new StringBuilder();
+            int p = 0;
+            for (int i = 0; i < count; i++) {
+                final String column = mapping.columns.get(i);
+                if (mapping.keys.contains(column))
+                    continue;
+                set.append(set.length() > 0 ? ", " : "").append(quote(column)).append(" = ?");
+                updateOrder[p++] = i;
+            }
+            for (int i = 0; i < count; i++) {
+                final String column = mapping.columns.get(i);
+                if (!mapping.keys.contains(column))
+                    continue;
+                where.append(where.length() > 0 ? " AND " : "").append(quote(column)).append(" = ?");
+                updateOrder[p++] = i;
+            }
+
+            update = db.compileStatement("UPDATE " + quote(mapping.table)
+                    + " SET " + set + " WHERE " + where);
+            try {
+                insert = db.compileStatement(sql.toString());
+            } catch (RuntimeException e) {
+                update.close();
+                throw e;
+            }
+        }
+
+        /**
+         * @return True if the path of the given writer lies below this one's
+         */
+        boolean contains(final TableWriter other) {
+            final String[] outer = mapping.segments, inner = other.mapping.segments;
+            if (inner.length <= outer.length)
+                return false;
+
+            for (int i = 0; i < outer.length; i++) {
+                if (!outer[i].equalsIgnoreCase(inner[i]))
+                    return false;
+            }
+            return true;
+        }
+
+        void addNested(final TableWriter other) {
+            nested.add(other);
+            nestedQueries.add(XmlQuery.compile(join(other.mapping.segments, mapping.segments.length)));
+        }
+
+        int write(final XmlNode node) {
+            for (int i = 0; i < sources.length; i++)
+                values[i] = sources[i].get(node);
+
+            if (update != null) {
+                for (int i = 0; i < updateOrder.length; i++)
+                    bind(update, i + 1, values[updateOrder[i]]);
+                if (update.executeUpdateDelete() > 0)
+                    return UPDATED;
+            }
+
+            for (int i = 0; i < values.length; i++)
+                bind(insert, i + 1, values[i]);
+            return insert.executeInsert() != -1 ? INSERTED : SKIPPED;
+        }
+
+        void close() {
+            insert.close();
+            if (update != null)
+                update.close();
+        }
+
+        private static void bind(final SQLiteStatement statement, final int index,
+                final String value) {
+            if (value == null)
+                statement.bindNull(index);
+            else
+                statement.bindString(index, value);
+        }
+
+        private static String quote(final String identifier) {
+            return '"' + identifier.replace("\"", "\"\"") + '"';
+        }
+    }
+
+    private static String join(final String[] segments, final int start) {
+        final StringBuilder ret = new StringBuilder();
+        for (int i = start; i < segments.length; i++) {
+            if (i > start)
+                ret.append('/');
+            ret.append(segments[i]);
+        }
+        return ret.toString();
+    }
+
+    private static String trimSlashes(final String path) {
+        int start = 0, end = path.length();
+        while (start < end && path.charAt(start) == '/') start++;
+        while (end > start && path.charAt(end - 1) == '/') end--;
+        return path.substring(start, end);
+    }
+
+    //			        *********************************
+    // ================ *          Statistics           * ==================
+    //                  *********************************
+
+    /**
+     * Outcome of a single import.
+     */
+    public static class Stats {
+
+        private final long _inserted, _updated, _skipped;
+        private final int _chunks;
+        private final long _elapsed;
+
+        Stats(final long inserted, final long updated, final long skipped,
+                final int chunks, final long elapsed) {
+            _inserted = inserted;
+            _updated = updated;
+            _skipped = skipped;
+            _chunks = chunks;
+            _elapsed = elapsed;
+        }
+
+        public long getInsertedRows() {
+            return _inserted;
+        }
+
+        /**
+         * @return Rows updated in place by {@link #CONFLICT_UPSERT} mappings
+         */
+        public long getUpdatedRows() {
+            return _updated;
+        }
+
+        /**
+         * @return Rows dropped by {@link #CONFLICT_IGNORE} mappings
+         */
+        public long getSkippedRows() {
+            return _skipped;
+        }
+
+        public long getTotalRows() {
+            return _inserted + _updated + _skipped;
+        }
+
+        /**
+         * @return Number of committed transactions
+         */
+        public int getChunkCount() {
+            return _chunks;
+        }
+
+        /**
+         * @return Duration of the import in milliseconds
+         */
+        public long getElapsedTime() {
+            return _elapsed;
+        }
+
+        public double getRowsPerSecond() {
+            return getTotalRows() * 1000.0 / Math.max(_elapsed, 1);
+        }
+
+        @Override
+        public String toString() {
+            return getTotalRows() + " rows (" + _inserted + " inserted, " + _updated
+                    + " updated, " + _skipped + " skipped) in " + _chunks + " chunks, "
+                    + _elapsed + " ms, " + Math.round(getRowsPerSecond()) + " rows/s";
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package com.badnewsbears.badnewscomics.xml;
+
+import org.xml.sax.Attributes;
+
+/**
+ * Parse-time counterpart of {@link NodeFilter}, see
+ * {@link XmlNode#parse(java.io.InputStream, int, ElementFilter)}.
+ */
+public interface ElementFilter {
+	/**
+	 * @param name Element name
+	 * @param attributes Attributes of the element, only valid during the call
+	 * @param parent Retained parent node, its ancestors are reachable through
+	 * {@link XmlNode#getParent()}
+	 * @return False to skip the element &amp; its entire subtree
+	 */
+	public boolean accept(String name, Attributes attributes, XmlNode parent);
+}
@@ -7,8 +7,14 @@ public class NameFilter implements NodeFilter {
         _name = name;
     }
 
+    public String getName() {
+        return _name;
+    }
+
     @Override
     public boolean accept(final XmlNode node) {
-        return _name.equalsIgnoreCase(node.getName());
+        // Node names are interned, so an exact match is usually an identity hit
+        final String name = node.getName();
+        return _name == name || _name.equalsIgnoreCase(name);
     }
 }
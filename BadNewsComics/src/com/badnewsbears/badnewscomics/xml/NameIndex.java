@@ -0,0 +1,157 @@
+package com.badnewsbears.badnewscomics.xml;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+/**
+ * Element name index for a single document, see
+ * {@link XmlNode#setNameIndexEnabled(boolean)}. Maps each case-folded element
+ * name to the nodes carrying it in document order. Every node is numbered in
+ * pre-order while the index is built, so the descendants of a node with a
+ * given name form a contiguous range that is located by binary search.
+ */
+class NameIndex {
+
+    private static final XmlNode[] EMPTY = new XmlNode[0];
+
+    private final XmlNode _root;
+    private HashMap<String, XmlNode[]> _nodes;
+
+    NameIndex(final XmlNode root) {
+        _root = root;
+    }
+
+    /**
+     * Drops the index, it is rebuilt on the next lookup.
+     */
+    synchronized void invalidate() {
+        _nodes = null;
+    }
+
+    /**
+     * @return All descendants of the given node with the given name, in
+     * document order
+     */
+    XmlNode[] findAll(final XmlNode node, final String name) {
+        final XmlNode[] nodes = lookup(name);
+        final int from = lowerBound(nodes, node.order + 1);
+        final int to = lowerBound(nodes, node.end);
+
+        final XmlNode[] ret = new XmlNode[to - from];
+        System.arraycopy(nodes, from, ret, 0, ret.length);
+        return ret;
+    }
+
+    /**
+     * @return The number of descendants of the given node with the given name
+     */
+    int countAll(final XmlNode node, final String name) {
+        final XmlNode[] nodes = lookup(name);
+        return lowerBound(nodes, node.end) - lowerBound(nodes, node.order + 1);
+    }
+
+    /**
+     * @return Children of the given node with the given name, or null if
+     * scanning the children directly is cheaper than scanning the index range
+     */
+    XmlNode[] findChildren(final XmlNode node, final String name) {
+        final XmlNode[] nodes = lookup(name);
+        final int from = lowerBound(nodes, node.order + 1);
+        final int to = lowerBound(nodes, node.end);
+
+        if (to - from > node.getChildCount())
+            return null;
+
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            if (nodes[i].getParent() == node)
+                count++;
+        }
+
+        final XmlNode[] ret = new XmlNode[count];
+        for (int i = from, j = 0; j < count; i++) {
+            if (nodes[i].getParent() == node)
+                ret[j++] = nodes[i];
+        }
+        return ret;
+    }
+
+    private synchronized XmlNode[] lookup(final String name) {
+        if (_nodes == null)
+            build();
+
+        final XmlNode[] ret = _nodes.get(fold(name));
+        return ret == null ? EMPTY : ret;
+    }
+
+    private void build() {
+        final HashMap<String, ArrayList<XmlNode>> lists = new HashMap<String, ArrayList<XmlNode>>();
+        final IdentityHashMap<String, String> folded = new IdentityHashMap<String, String>();
+
+        final XmlCursor cursor = new XmlCursor(_root);
+        int order = 0;
+        int event;
+        while ((event = cursor.next()) != XmlCursor.DONE) {
+            final XmlNode node = cursor.getNode();
+            if (event == XmlCursor.END) {
+                node.end = order;
+                continue;
+            }
+
+            node.order = order++;
+
+            // Names are interned, fold each distinct one only once
+            String key = folded.get(node.getName());
+            if (key == null) {
+                key = fold(node.getName());
+                folded.put(node.getName(), key);
+            }
+
+            ArrayList<XmlNode> list = lists.get(key);
+            if (list == null) {
+                list = new ArrayList<XmlNode>();
+                lists.put(key, list);
+            }
+            list.add(node);
+        }
+
+        _nodes = new HashMap<String, XmlNode[]>(lists.size() * 2);
+        for (String key : lists.keySet()) {
+            final ArrayList<XmlNode> list = lists.get(key);
+            _nodes.put(key, list.toArray(new XmlNode[list.size()]));
+        }
+    }
+
+    /**
+     * @return Index of the first node numbered at or after the given order
+     */
+    private static int lowerBound(final XmlNode[] nodes, final int order) {
+        int lo = 0, hi = nodes.length;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (nodes[mid].order < order)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * Case folding consistent with {@link String#equalsIgnoreCase(String)}.
+     */
+    static String fold(final String name) {
+        final int len = name.length();
+        for (int i = 0; i < len; i++) {
+            final char c = name.charAt(i);
+            if (Character.toLowerCase(Character.toUpperCase(c)) != c) {
+                final char[] chars = name.toCharArray();
+                for (int j = i; j < len; j++)
+                    chars[j] = Character.toLowerCase(Character.toUpperCase(chars[j]));
+                return new String(chars);
+            }
+        }
+        return name;
+    }
+}
@@ -0,0 +1,272 @@
+package com.badnewsbears.badnewscomics.xml;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Parallel variants of {@link XmlNode#findAll(NodeFilter)},
+ * {@link XmlNode#countAll(NodeFilter)} &amp; visitor dispatch for large trees.
+ * The subtree below the start node is split into work units in document order
+ * which run on the supplied executor; results are merged back in document
+ * order. Subtrees smaller than the threshold are walked on the calling thread.
+ * <br/><br/>
+ * Filters &amp; visitors are invoked from several threads at once &amp; must be
+ * thread-safe. The tree must not be modified during a traversal.
+ */
+public class ParallelTraversal {
+
+    public static final int DEFAULT_THRESHOLD = 8192;
+
+    private static final int UNITS_PER_THREAD = 8;
+
+    private final ExecutorService _executor;
+    private final int _parallelism;
+    private int _threshold = DEFAULT_THRESHOLD;
+
+    /**
+     * @param executor Executor running the work units, typically a fixed pool
+     * @param parallelism Number of threads of the executor
+     */
+    public ParallelTraversal(final ExecutorService executor, final int parallelism) {
+        if (executor == null || parallelism < 1)
+            throw new IllegalArgumentException("Invalid executor or parallelism");
+
+        _executor = executor;
+        _parallelism = parallelism;
+    }
+
+    /**
+     * @param threshold Minimum number of nodes below the start node for a
+     * traversal to be split across threads
+     */
+    public void setThreshold(final int threshold) {
+        _threshold = threshold;
+    }
+
+    public int getThreshold() {
+        return _threshold;
+    }
+
+    /**
+     * @return All descendants of the given node accepted by the filter, in
+     * document order
+     * @see XmlNode#findAll(NodeFilter)
+     */
+    public XmlNode[] findAll(final XmlNode node, final NodeFilter filter)
+            throws InterruptedException {
+        final List<List<Unit>> batches = split(node);
+        if (batches == null)
+            return node.findAll(filter);
+
+        final ArrayList<Future<ArrayList<XmlNode>>> futures =
+                new ArrayList<Future<ArrayList<XmlNode>>>(batches.size());
+        for (final List<Unit> batch : batches) {
+            futures.add(_executor.submit(new Callable<ArrayList<XmlNode>>() {
+                @Override
+                public ArrayList<XmlNode> call() {
+                    final ArrayList<XmlNode> found = new ArrayList<XmlNode>();
+                    final XmlCursor cursor = new XmlCursor(null);
+                    for (Unit unit : batch) {
+                        cursor.reset(unit.node);
+                        XmlNode next;
+                        while ((next = cursor.nextPreOrder()) != null) {
+                            if (filter.accept(next))
+                                found.add(next);
+                            if (!unit.recurse)
+                                cursor.skipSubtree();
+                        }
+                    }
+                    return found;
+                }
+            }));
+        }
+
+        final ArrayList<XmlNode> ret = new ArrayList<XmlNode>();
+        for (Future<ArrayList<XmlNode>> future : futures)
+            ret.addAll(get(future, futures));
+        return ret.toArray(new XmlNode[ret.size()]);
+    }
+
+    /**
+     * @return The number of descendants of the given node accepted by the filter
+     * @see XmlNode#countAll(NodeFilter)
+     */
+    public int countAll(final XmlNode node, final NodeFilter filter)
+            throws InterruptedException {
+        final List<List<Unit>> batches = split(node);
+        if (batches == null)
+            return node.countAll(filter);
+
+        final ArrayList<Future<Integer>> futures = new ArrayList<Future<Integer>>(batches.size());
+        for (final List<Unit> batch : batches) {
+            futures.add(_executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    final XmlCursor cursor = new XmlCursor(null);
+                    int count = 0;
+                    for (Unit unit : batch) {
+                        cursor.reset(unit.node);
+                        XmlNode next;
+                        while ((next = cursor.nextPreOrder()) != null) {
+                            if (filter.accept(next))
+                                count++;
+                            if (!unit.recurse)
+                                cursor.skipSubtree();
+                        }
+                    }
+                    return count;
+                }
+            }));
+        }
+
+        int ret = 0;
+        for (Future<Integer> future : futures)
+            ret += get(future, futures);
+        return ret;
+    }
+
+    /**
+     * Calls the visitor once for every descendant of the given node. Visits
+     * happen concurrently &amp; in no particular order; the call returns once
+     * all visits are complete.
+     */
+    public void visitAll(final XmlNode node, final NodeVisitor visitor)
+            throws InterruptedException {
+        final List<List<Unit>> batches = split(node);
+        if (batches == null) {
+            final XmlCursor cursor = new XmlCursor(node);
+            cursor.nextPreOrder(); // the start node itself
+            XmlNode next;
+            while ((next = cursor.nextPreOrder()) != null)
+                visitor.visit(next);
+            return;
+        }
+
+        final ArrayList<Future<?>> futures = new ArrayList<Future<?>>(batches.size());
+        for (final List<Unit> batch : batches) {
+            futures.add(_executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    final XmlCursor cursor = new XmlCursor(null);
+                    for (Unit unit : batch) {
+                        cursor.reset(unit.node);
+                        XmlNode next;
+                        while ((next = cursor.nextPreOrder()) != null) {
+                            visitor.visit(next);
+                            if (!unit.recurse)
+                                cursor.skipSubtree();
+                        }
+                    }
+                }
+            }));
+        }
+
+        for (Future<?> future : futures)
+            get(future, futures);
+    }
+
+    /**
+     * Splits the descendants of the given node into work units in document
+     * order. Units holding the most children are expanded first until there
+     * are enough units to keep every thread busy, consecutive units are then
+     * grouped into one batch per task.
+     * @return The batches, or null if the subtree is below the threshold
+     */
+    private List<List<Unit>> split(final XmlNode node) {
+        if (_parallelism == 1 || isSmall(node))
+            return null;
+
+        ArrayList<Unit> units = new ArrayList<Unit>();
+        for (int i = 0; i < node.getChildCount(); i++)
+            units.add(new Unit(node.getChild(i), true));
+
+        final int target = _parallelism * UNITS_PER_THREAD;
+        while (units.size() < target) {
+            int widest = -1;
+            for (int i = 0; i < units.size(); i++) {
+                final Unit unit = units.get(i);
+                if (unit.recurse && unit.node.getChildCount() > 0
+                        && (widest < 0 || unit.node.getChildCount()
+                                > units.get(widest).node.getChildCount()))
+                    widest = i;
+            }
+
+            if (widest < 0)
+                break;
+
+            final XmlNode expand = units.get(widest).node;
+            final ArrayList<Unit> expanded =
+                    new ArrayList<Unit>(units.size() + expand.getChildCount());
+            expanded.addAll(units.subList(0, widest));
+            expanded.add(new Unit(expand, false));
+            for (int i = 0; i < expand.getChildCount(); i++)
+                expanded.add(new Unit(expand.getChild(i), true));
+            expanded.addAll(units.subList(widest + 1, units.size()));
+            units = expanded;
+        }
+
+        final int batchCount = Math.min(units.size(), target);
+        final ArrayList<List<Unit>> batches = new ArrayList<List<Unit>>(batchCount);
+        for (int i = 0; i < batchCount; i++) {
+            batches.add(units.subList(
+                    (int) ((long) units.size() * i / batchCount),
+                    (int) ((long) units.size() * (i + 1) / batchCount)));
+        }
+        return batches;
+    }
+
+    /**
+     * @return True if the subtree holds fewer nodes than the threshold. Stops
+     * counting at the threshold, so the check is cheap for large trees.
+     */
+    private boolean isSmall(final XmlNode node) {
+        final XmlCursor cursor = new XmlCursor(node);
+        int count = 0;
+        while (cursor.nextPreOrder() != null) {
+            if (++count > _threshold)
+                return false;
+        }
+        return true;
+    }
+
+    private static <T> T get(final Future<T> future, final List<? extends Future<?>> all)
+            throws InterruptedException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            cancel(all);
+            throw e;
+        } catch (ExecutionException e) {
+            cancel(all);
+
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new RuntimeException(cause);
+        }
+    }
+
+    private static void cancel(final List<? extends Future<?>> futures) {
+        for (Future<?> future : futures)
+            future.cancel(true);
+    }
+
+    /**
+     * A single node, or a node together with its whole subtree.
+     */
+    private static class Unit {
+        final XmlNode node;
+        final boolean recurse;
+
+        Unit(final XmlNode node, final boolean recurse) {
+            this.node = node;
+            this.recurse = recurse;
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package com.badnewsbears.badnewscomics.xml;
+
+/**
+ * Outcome of parsing a single document in {@link XmlNode#parseAll}. Either
+ * holds the parsed document element or the exception that stopped the parse.
+ */
+public class ParseResult {
+    private final XmlNode _node;
+    private final Exception _error;
+
+    ParseResult(final XmlNode node, final Exception error) {
+        _node = node;
+        _error = error;
+    }
+
+    public boolean isSuccess() {
+        return _error == null;
+    }
+
+    /**
+     * @return The document element, or null if parsing failed
+     */
+    public XmlNode getNode() {
+        return _node;
+    }
+
+    /**
+     * @return The exception that stopped the parse, or null on success
+     */
+    public Exception getError() {
+        return _error;
+    }
+}
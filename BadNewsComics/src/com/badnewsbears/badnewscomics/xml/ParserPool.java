@@ -0,0 +1,66 @@
+package com.badnewsbears.badnewscomics.xml;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.SAXException;
+
+/**
+ * Per-thread cache of {@link SAXParser}s. Creating a factory &amp; parser costs
+ * far more than parsing a small document, so each thread keeps one parser
+ * that is reset between documents. A parse started while the thread's parser
+ * is busy, e.g. from a callback of {@link XmlStreamParser}, gets a fresh one.
+ */
+final class ParserPool {
+
+    private static final SAXParserFactory FACTORY = SAXParserFactory.newInstance();
+
+    private static final ThreadLocal<ParserPool> POOLS = new ThreadLocal<ParserPool>() {
+        @Override
+        protected ParserPool initialValue() {
+            return new ParserPool();
+        }
+    };
+
+    private SAXParser _parser;
+    private boolean _busy;
+
+    private ParserPool() { }
+
+    /**
+     * @return A parser for the calling thread, hand it back through
+     * {@link #release(SAXParser)} once the document is parsed
+     */
+    static SAXParser obtain() throws ParserConfigurationException, SAXException {
+        final ParserPool pool = POOLS.get();
+        if (pool._busy)
+            return newParser();
+
+        if (pool._parser == null)
+            pool._parser = newParser();
+        pool._busy = true;
+        return pool._parser;
+    }
+
+    static void release(final SAXParser parser) {
+        final ParserPool pool = POOLS.get();
+        if (pool._parser != parser)
+            return;
+
+        try {
+            parser.reset();
+        } catch (UnsupportedOperationException e) {
+            pool._parser = null; // cannot be reused, build another next time
+        }
+        pool._busy = false;
+    }
+
+    private static SAXParser newParser() throws ParserConfigurationException,
+            SAXException {
+        // SAXParserFactory is not guaranteed to be thread-safe
+        synchronized (FACTORY) {
+            return FACTORY.newSAXParser();
+        }
+    }
+}
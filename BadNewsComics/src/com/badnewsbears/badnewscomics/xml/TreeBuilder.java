@@ -0,0 +1,134 @@
+package com.badnewsbears.badnewscomics.xml;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * SAX handler building the {@link XmlNode} tree for {@link XmlNode#parse}.
+ * Character data of all open elements is accumulated in one reused buffer;
+ * each element remembers where its text starts &amp; its value is only turned
+ * into a String once its end tag is read, so text delivered in several chunks
+ * is kept whole.
+ * <br/><br/>
+ * An optional {@link ElementFilter} prunes elements as they start; the
+ * subtree of a rejected element is skipped without creating nodes or
+ * buffering its text.
+ */
+class TreeBuilder extends DefaultHandler {
+
+    private final XmlNode root = new XmlNode("Root", null);
+    private final int options;
+    private final ElementFilter filter;
+
+    private XmlNode node; // current node
+
+    private char[] text = new char[256];
+    private int textLength;
+    private int[] textStart = new int[16]; // per open element
+    private int depth;
+    private int skipDepth; // open elements inside a rejected subtree
+
+    TreeBuilder(final int options) {
+        this(options, null);
+    }
+
+    TreeBuilder(final int options, final ElementFilter filter) {
+        this.options = options;
+        this.filter = filter;
+    }
+
+    /**
+     * @return The document element once parsing is done
+     */
+    XmlNode getDocument() {
+        return root.getChildCount() > 0 ? root.getChild(0) : null;
+    }
+
+    /**
+     * Removes the finished document from the builder so it can start over
+     * with {@link #startDocument()}.
+     * @return The document element without a parent
+     */
+    XmlNode detachDocument() {
+        final XmlNode ret = getDocument();
+        if (ret != null)
+            root.remove(ret);
+        return ret;
+    }
+
+    @Override
+    public void startDocument() {
+        node = root;
+    }
+
+    @Override
+    public void startElement(String uri, String localName,
+            String qName, Attributes attributes) throws SAXException {
+        if (skipDepth > 0 || (filter != null && !filter.accept(qName, attributes, node))) {
+            skipDepth++;
+            return;
+        }
+
+        final XmlNode child = new XmlNode(node, qName, attributes, null, true);
+        node.add(child);
+        node = child;
+
+        if (depth == textStart.length) {
+            final int[] grown = new int[depth * 2];
+            System.arraycopy(textStart, 0, grown, 0, depth);
+            textStart = grown;
+        }
+        textStart[depth++] = textLength;
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName)
+            throws SAXException {
+        if (skipDepth > 0) {
+            skipDepth--;
+            return;
+        }
+
+        final int start = textStart[--depth];
+        node.setValue(materialize(start));
+        textLength = start;
+
+        node.trimToSize();
+        node = node.getParent();
+    }
+
+    @Override
+    public void characters(char ch[], int start, int length)
+            throws SAXException {
+        if (length == 0 || depth == 0 || skipDepth > 0)
+            return;
+
+        if (textLength + length > text.length) {
+            final char[] grown = new char[Math.max(text.length * 2, textLength + length)];
+            System.arraycopy(text, 0, grown, 0, textLength);
+            text = grown;
+        }
+
+        System.arraycopy(ch, start, text, textLength, length);
+        textLength += length;
+    }
+
+    private String materialize(final int start) {
+        if (start == textLength)
+            return null;
+
+        if ((options & XmlNode.PARSE_DROP_CONTAINER_TEXT) != 0 && node.getChildCount() > 0)
+            return null;
+
+        if ((options & XmlNode.PARSE_TRIM_WHITESPACE) != 0) {
+            int i = start;
+            while (i < textLength && Character.isWhitespace(text[i]))
+                i++;
+            if (i == textLength)
+                return null;
+        }
+
+        return new String(text, start, textLength - start);
+    }
+}
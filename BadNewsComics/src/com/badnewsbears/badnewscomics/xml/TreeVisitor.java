@@ -0,0 +1,30 @@
+package com.badnewsbears.badnewscomics.xml;
+
+/**
+ * Visitor for {@link XmlNode#walk(TreeVisitor)}. Unlike {@link NodeVisitor} it
+ * is called on entering &amp; leaving every node of a subtree &amp; steers the
+ * walk through its return codes.
+ */
+public interface TreeVisitor {
+
+	/** Keep walking. */
+	public static final int CONTINUE = 0;
+
+	/** Do not descend into the children of the entered node; its exit is still reported. */
+	public static final int SKIP_SUBTREE = 1;
+
+	/** End the walk immediately. */
+	public static final int STOP = 2;
+
+	/**
+	 * Called before the children of the node are visited.
+	 * @return One of {@link #CONTINUE}, {@link #SKIP_SUBTREE} or {@link #STOP}
+	 */
+	public int enter(XmlNode node);
+
+	/**
+	 * Called after the children of the node were visited.
+	 * @return {@link #CONTINUE} or {@link #STOP}
+	 */
+	public int exit(XmlNode node);
+}
@@ -0,0 +1,129 @@
+package com.badnewsbears.badnewscomics.xml;
+
+/**
+ * Reusable document order cursor over an {@link XmlNode} subtree. Every node is
+ * reported twice, once with {@link #START} before its children &amp; once with
+ * {@link #END} after them, so the same cursor serves pre-order &amp; post-order
+ * walks. Navigation uses parent links &amp; sibling indices only, so a walk
+ * neither recurses nor allocates &amp; a full traversal is linear in the size
+ * of the subtree.
+ * <br/><br/>
+ * The tree must not be modified while a cursor is walking it.
+ */
+public class XmlCursor {
+
+    public static final int
+        START = 1,
+        END   = 2,
+        DONE  = 3;
+
+    private static final int NONE = 0;
+
+    private XmlNode _root;
+    private XmlNode _node;
+    private int _event;
+    private int _depth;
+    private boolean _skip;
+
+    public XmlCursor(final XmlNode root) {
+        reset(root);
+    }
+
+    /**
+     * Restarts the cursor on a new subtree.
+     * @param root Root of the subtree to walk, it is reported as the first node
+     */
+    public void reset(final XmlNode root) {
+        _root = root;
+        _node = null;
+        _event = root == null ? DONE : NONE;
+        _depth = 0;
+        _skip = false;
+    }
+
+    /**
+     * Advances to the next event.
+     * @return One of {@link #START}, {@link #END} or {@link #DONE}
+     */
+    public int next() {
+        switch (_event) {
+            case NONE:
+                _node = _root;
+                _event = START;
+                break;
+
+            case START:
+                if (_skip || _node.getChildCount() == 0) {
+                    _event = END;
+                } else {
+                    _node = _node.getChild(0);
+                    _event = START;
+                    _depth++;
+                }
+                _skip = false;
+                break;
+
+            case END:
+                if (_node == _root) {
+                    _node = null;
+                    _event = DONE;
+                    break;
+                }
+
+                final XmlNode sibling = _node.getNextSibling();
+                if (sibling != null) {
+                    _node = sibling;
+                    _event = START;
+                } else {
+                    _node = _node.getParent();
+                    _event = END;
+                    _depth--;
+                }
+                break;
+        }
+
+        return _event;
+    }
+
+    /**
+     * @return The next node in pre-order, or null once the walk is done
+     */
+    public XmlNode nextPreOrder() {
+        while (next() == END) { }
+        return _node;
+    }
+
+    /**
+     * @return The next node in post-order, or null once the walk is done
+     */
+    public XmlNode nextPostOrder() {
+        while (next() == START) { }
+        return _node;
+    }
+
+    /**
+     * Skips the children of the current node. Only valid directly after a
+     * {@link #START} event; the next event is the matching {@link #END}.
+     */
+    public void skipSubtree() {
+        if (_event != START)
+            throw new IllegalStateException("skipSubtree() requires a START event");
+
+        _skip = true;
+    }
+
+    /**
+     * @return Node of the current event, null before the first call to
+     * {@link #next()} &amp; once the walk is done
+     */
+    public XmlNode getNode() {
+        return _node;
+    }
+
+    /**
+     * @return Depth of the current node relative to the root, which is at 0
+     */
+    public int getDepth() {
+        return _depth;
+    }
+}
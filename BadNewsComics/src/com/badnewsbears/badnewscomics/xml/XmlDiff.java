@@ -0,0 +1,153 @@
+package com.badnewsbears.badnewscomics.xml;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+/**
+ * Structural diff between two versions of a document, e.g. a cached &amp; a
+ * refreshed catalog feed. Subtrees are compared through
+ * {@link XmlNode#getContentHash()}, so identical branches are skipped without
+ * being visited &amp; the cost of a diff follows the size of the change once
+ * both trees are hashed.
+ * <br/><br/>
+ * Children are paired by element name, by the value of the key attribute if
+ * one is set &amp; otherwise by their order among siblings with the same name.
+ */
+public class XmlDiff {
+
+    /**
+     * Receives the differences found by {@link XmlDiff#diff}.
+     */
+    public interface DiffListener {
+        /** A subtree present only in the new tree. */
+        public void onAdded(XmlNode node);
+
+        /** A subtree present only in the old tree. */
+        public void onRemoved(XmlNode node);
+
+        /** A node whose attributes or value changed; children are reported separately. */
+        public void onModified(XmlNode oldNode, XmlNode newNode);
+    }
+
+    private String _keyAttribute;
+
+    /**
+     * @param name Attribute identifying elements among their siblings, e.g.
+     * <code>id</code>, or null to pair children by position
+     */
+    public void setKeyAttribute(final String name) {
+        _keyAttribute = name;
+    }
+
+    /**
+     * Reports every difference between the two trees to the listener.
+     */
+    public void diff(final XmlNode oldTree, final XmlNode newTree, final DiffListener listener) {
+        if (oldTree.getContentHash() == newTree.getContentHash())
+            return;
+
+        if (!oldTree.getName().equals(newTree.getName())) {
+            listener.onRemoved(oldTree);
+            listener.onAdded(newTree);
+            return;
+        }
+
+        if (!sameContent(oldTree, newTree))
+            listener.onModified(oldTree, newTree);
+
+        diffChildren(oldTree, newTree, listener);
+    }
+
+    private void diffChildren(final XmlNode oldTree, final XmlNode newTree,
+            final DiffListener listener) {
+        final int oldCount = oldTree.getChildCount();
+        final int newCount = newTree.getChildCount();
+
+        // Skip the unchanged head & tail, usually all but a few children
+        int head = 0;
+        while (head < oldCount && head < newCount
+                && oldTree.getChild(head).getContentHash() == newTree.getChild(head).getContentHash())
+            head++;
+
+        int tail = 0;
+        while (tail < oldCount - head && tail < newCount - head
+                && oldTree.getChild(oldCount - 1 - tail).getContentHash()
+                        == newTree.getChild(newCount - 1 - tail).getContentHash())
+            tail++;
+
+        final int oldEnd = oldCount - tail;
+        final int newEnd = newCount - tail;
+        if (head == oldEnd) {
+            for (int i = head; i < newEnd; i++)
+                listener.onAdded(newTree.getChild(i));
+            return;
+        }
+        if (head == newEnd) {
+            for (int i = head; i < oldEnd; i++)
+                listener.onRemoved(oldTree.getChild(i));
+            return;
+        }
+
+        final HashMap<String, XmlNode> unmatched = new HashMap<String, XmlNode>();
+        final HashMap<String, Integer> occurrences = new HashMap<String, Integer>();
+        for (int i = head; i < oldEnd; i++) {
+            final XmlNode child = oldTree.getChild(i);
+            unmatched.put(key(child, occurrences), child);
+        }
+
+        occurrences.clear();
+        for (int i = head; i < newEnd; i++) {
+            final XmlNode child = newTree.getChild(i);
+            final XmlNode match = unmatched.remove(key(child, occurrences));
+            if (match == null)
+                listener.onAdded(child);
+            else
+                diff(match, child, listener);
+        }
+
+        // Report removals in document order
+        if (!unmatched.isEmpty()) {
+            final IdentityHashMap<XmlNode, Boolean> removed =
+                    new IdentityHashMap<XmlNode, Boolean>(unmatched.size());
+            for (XmlNode child : unmatched.values())
+                removed.put(child, Boolean.TRUE);
+
+            for (int i = head; i < oldEnd; i++) {
+                final XmlNode child = oldTree.getChild(i);
+                if (removed.containsKey(child))
+                    listener.onRemoved(child);
+            }
+        }
+    }
+
+    private String key(final XmlNode node, final HashMap<String, Integer> occurrences) {
+        final String id = _keyAttribute == null ? null : node.getAttributeValue(_keyAttribute);
+        String key = id == null ? node.getName() : node.getName() + '@' + id;
+
+        final Integer seen = occurrences.get(key);
+        occurrences.put(key, seen == null ? 1 : seen + 1);
+        if (seen != null)
+            key = key + '#' + seen;
+        return key;
+    }
+
+    private static boolean sameContent(final XmlNode a, final XmlNode b) {
+        if (!equal(a.getValue(), b.getValue()))
+            return false;
+
+        if (a.getAttributeCount() != b.getAttributeCount())
+            return false;
+
+        for (int i = 0; i < a.getAttributeCount(); i++) {
+            // Values may be null, which must not match a missing attribute
+            final int j = b.attributeIndex(a.getAttributeName(i));
+            if (j < 0 || !equal(a.getAttributeValue(i), b.getAttributeValue(j)))
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean equal(final String a, final String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
@@ -2,132 +2,308 @@ package com.badnewsbears.badnewscomics.xml;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintStream;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
 
 import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
-import org.xml.sax.helpers.DefaultHandler;
 
 /**
  * Composite XML tree structure. Supports reading & writing to file.
+ * <br/><br/>
+ * Nodes are kept compact for large documents: element &amp; attribute names
+ * are interned, attributes live in parallel name/value arrays &amp; children
+ * in a contiguous array that is trimmed to size once an element is parsed.
  */
 @SuppressWarnings("unused")
 public class XmlNode {
 
+    /** Parse option: elements whose text is only whitespace get a null value. */
+    public static final int PARSE_TRIM_WHITESPACE = 1;
+
+    /** Parse option: elements with child elements get a null value. */
+    public static final int PARSE_DROP_CONTAINER_TEXT = 2;
+
+    private static final long HASH_SEED = 0xcbf29ce484222325L;
+
     private XmlNode parent;
     private boolean showAttributes;
     private String name, value;
-    private HashMap<String, String> attMap;
-    private ArrayList<XmlNode> children;
+    private String[] attNames, attValues;
+    private int attCount;
+    private XmlNode[] children;
+    private int childCount;
+    private int index; // position within parent's children
+    private NameIndex nameIndex; // shared by all nodes of an indexed document
+
+    int order, end; // pre-order numbering, maintained by NameIndex
+
+    private long contentHash; // 0 until computed, see getContentHash()
 
     public XmlNode(XmlNode parent, String name, Attributes attributes,
             String value, boolean showAttributes) {
         this.parent = parent;
-        this.name = name;
+        this.name = name.intern();
         this.value = value;
         this.showAttributes = showAttributes;
 
-        if (attributes != null && attributes.getLength() > 0) {
-            this.attMap = new HashMap<String, String>();
-            for (int i = 0; i < attributes.getLength(); i++) {
-                attMap.put(attributes.getQName(i), attributes.getValue(i));
-            }
-        }
+        setAttributes(attributes);
     }
 
     public XmlNode(String name, Attributes attributes, boolean showAttributes) {
-        this.name = name;
+        this.name = name.intern();
         this.showAttributes = showAttributes;
 
-        if (attributes != null && attributes.getLength() > 0) {
-            this.attMap = new HashMap<String, String>();
-            for (int i = 0; i < attributes.getLength(); i++) {
-                attMap.put(attributes.getQName(i), attributes.getValue(i));
-            }
-        }
+        setAttributes(attributes);
     }
 
     public XmlNode(String name, Attributes attributes) {
-        this.name = name;
+        this.name = name.intern();
 
-        if (attributes != null && attributes.getLength() > 0) {
-            this.attMap = new HashMap<String, String>();
-            for (int i = 0; i < attributes.getLength(); i++) {
-                attMap.put(attributes.getQName(i), attributes.getValue(i));
-            }
-        }
+        setAttributes(attributes);
     }
 
     public XmlNode(String name) {
-        this.name = name;
+        this.name = name.intern();
+    }
+
+    private void setAttributes(Attributes attributes) {
+        if (attributes != null && attributes.getLength() > 0) {
+            attCount = attributes.getLength();
+            attNames = new String[attCount];
+            attValues = new String[attCount];
+            for (int i = 0; i < attCount; i++) {
+                attNames[i] = attributes.getQName(i).intern();
+                attValues[i] = attributes.getValue(i);
+            }
+        }
     }
 
     public static XmlNode parse(InputStream in) throws IOException,
             ParserConfigurationException, SAXException {
-        SAXParserFactory factory = SAXParserFactory.newInstance();
-        SAXParser saxParser = factory.newSAXParser();
+        return parse(in, 0);
+    }
+
+    /**
+     * Parses an XML document into a tree. Text is accumulated across all
+     * chunks the parser delivers, so values are never truncated; text around
+     * child elements is joined into the parent's value.
+     * @param in Document source
+     * @param options Combination of {@link #PARSE_TRIM_WHITESPACE} &amp;
+     * {@link #PARSE_DROP_CONTAINER_TEXT}, or 0
+     * @return The document element
+     */
+    public static XmlNode parse(InputStream in, int options) throws IOException,
+            ParserConfigurationException, SAXException {
+        return parse(new InputSource(in), options);
+    }
 
-        final XmlNode root = new XmlNode("Root", null);
+    /**
+     * @see #parse(InputStream, int)
+     */
+    public static XmlNode parse(InputSource source, int options) throws IOException,
+            ParserConfigurationException, SAXException {
+        return parse(source, options, null);
+    }
+
+    /**
+     * Parses an XML document, keeping only the elements accepted by the
+     * filter. A rejected element's subtree is skipped while parsing, no nodes,
+     * attributes or text are created for it.
+     * @param in Document source
+     * @param options Parse options, see {@link #parse(InputStream, int)}
+     * @param filter Evaluated as each element starts, null to keep everything
+     * @return The document element, or null if it was rejected
+     */
+    public static XmlNode parse(InputStream in, int options, ElementFilter filter)
+            throws IOException, ParserConfigurationException, SAXException {
+        return parse(new InputSource(in), options, filter);
+    }
+
+    /**
+     * @see #parse(InputStream, int, ElementFilter)
+     */
+    public static XmlNode parse(InputSource source, int options, ElementFilter filter)
+            throws IOException, ParserConfigurationException, SAXException {
+        final SAXParser saxParser = ParserPool.obtain();
+        try {
+            final TreeBuilder handler = new TreeBuilder(options, filter);
+            saxParser.parse(source, handler);
+
+            return handler.getDocument();
+        } finally {
+            ParserPool.release(saxParser);
+        }
+    }
 
-        DefaultHandler handler = new DefaultHandler() {
+    /**
+     * Parses many documents concurrently on a pool of at most the given
+     * number of threads, see {@link #parseAll(List, int, ExecutorService)}.
+     */
+    public static ParseResult[] parseAll(List<InputSource> sources, int options,
+            int threads) throws InterruptedException {
+        final ExecutorService executor = Executors.newFixedThreadPool(
+                Math.max(1, Math.min(threads, sources.size())));
+        try {
+            return parseAll(sources, options, executor);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
 
-            XmlNode node; // current node
-            XmlNode parent;
+    /**
+     * Parses many documents concurrently. A failing document does not affect
+     * the others, its result holds the error instead. Sources given by system
+     * id, e.g. a file URI, are only opened once their parse starts.
+     * @param sources Documents to parse
+     * @param options Parse options, see {@link #parse(InputStream, int)}
+     * @param executor Executor running one task per document
+     * @return One result per source, in input order
+     * @throws InterruptedException If interrupted while waiting for results,
+     * parses still running are cancelled
+     */
+    public static ParseResult[] parseAll(List<InputSource> sources, final int options,
+            ExecutorService executor) throws InterruptedException {
+        final ArrayList<Future<ParseResult>> futures =
+                new ArrayList<Future<ParseResult>>(sources.size());
+        for (final InputSource source : sources) {
+            futures.add(executor.submit(new Callable<ParseResult>() {
+                @Override
+                public ParseResult call() {
+                    try {
+                        return new ParseResult(parse(source, options), null);
+                    } catch (Exception e) {
+                        return new ParseResult(null, e);
+                    }
+                }
+            }));
+        }
 
-            @Override
-            public void startDocument() {
-                parent = root;
+        final ParseResult[] ret = new ParseResult[futures.size()];
+        try {
+            for (int i = 0; i < ret.length; i++) {
+                try {
+                    ret[i] = futures.get(i).get();
+                } catch (ExecutionException e) {
+                    // Errors other than exceptions escape the task
+                    final Throwable cause = e.getCause();
+                    ret[i] = new ParseResult(null, cause instanceof Exception
+                            ? (Exception) cause : new RuntimeException(cause));
+                }
             }
+        } catch (InterruptedException e) {
+            for (Future<ParseResult> future : futures)
+                future.cancel(true);
+            throw e;
+        }
+        return ret;
+    }
 
-            @Override
-            public void endDocument() { }
+    public void add(XmlNode node) {
+        if (children == null) {
+            children = new XmlNode[4];
+        } else if (childCount == children.length) {
+            // trimToSize() may leave a single slot, which 1.5x would not grow
+            final XmlNode[] grown = new XmlNode[Math.max(childCount + 1, childCount + (childCount >> 1))];
+            System.arraycopy(children, 0, grown, 0, childCount);
+            children = grown;
+        }
 
-            @Override
-            public void startElement(String uri, String localName,
-                    String qName, Attributes attributes) throws SAXException {
-                parent.add(node = new XmlNode(parent, qName, attributes, null, true));
-                parent = node;
-            }
+        node.parent = this;
+        node.index = childCount;
+        children[childCount++] = node;
 
-            @Override
-            public void endElement(String uri, String localName, String qName)
-                    throws SAXException {
-                parent = node.getParent();
-                node = parent;
-            }
+        if (nameIndex != null) {
+            nameIndex.invalidate();
+            node.setNameIndex(nameIndex);
+        } else if (node.nameIndex != null) {
+            node.setNameIndex(null);
+        }
 
-            @Override
-            public void characters(char ch[], int start, int length)
-                    throws SAXException {
-                if (length > 0) {
-                    node.setValue(new String(ch, start, length));
-                }
-            }
-        };
+        invalidateContentHash();
+    }
+
+    public void remove(XmlNode node) {
+        final int i = indexOf(node);
+        if (i < 0)
+            return;
 
-        saxParser.parse(in, handler);
+        System.arraycopy(children, i + 1, children, i, childCount - i - 1);
+        children[--childCount] = null;
 
-        return root.getNext();
-    }
+        for (int j = i; j < childCount; j++)
+            children[j].index = j;
 
-    public void add(XmlNode node) {
-        if (children == null)
-            children = new ArrayList<XmlNode>();
+        node.parent = null;
+        node.index = 0;
 
-        children.add(node);
-    }
+        if (nameIndex != null) {
+            nameIndex.invalidate();
+            node.setNameIndex(null);
+        }
 
-    public void remove(XmlNode node) {
-        if (children != null)
-            children.remove(node);
+        invalidateContentHash();
+    }
+
+    /**
+     * Enables or disables the element name index for the document containing
+     * this node. The index is built on the first name lookup after being
+     * enabled or after the tree was modified through {@link #add(XmlNode)} or
+     * {@link #remove(XmlNode)}. While enabled, {@link #findAll(NodeFilter)} &amp;
+     * {@link #countAll(NodeFilter)} with a {@link NameFilter}, as well as
+     * {@link #findChildren(String)}, are answered from the index instead of
+     * scanning the tree.
+     * @param enabled True to index the document
+     */
+    public void setNameIndexEnabled(boolean enabled) {
+        XmlNode root = this;
+        while (root.parent != null)
+            root = root.parent;
+
+        if (!enabled)
+            root.setNameIndex(null);
+        else if (root.nameIndex == null)
+            root.setNameIndex(new NameIndex(root));
+    }
+
+    private NameIndex getNameIndex() {
+        return nameIndex;
+    }
+
+    /**
+     * Points every node of this subtree at the given index, so that lookups
+     * &amp; invalidation never have to search for the document root.
+     */
+    private void setNameIndex(NameIndex index) {
+        final XmlCursor cursor = new XmlCursor(this);
+        XmlNode node;
+        while ((node = cursor.nextPreOrder()) != null)
+            node.nameIndex = index;
+    }
+
+    /**
+     * Shrinks the child array of this node to its exact size. Called on every
+     * element once it has been parsed.
+     */
+    public void trimToSize() {
+        if (childCount == 0) {
+            children = null;
+        } else if (childCount < children.length) {
+            final XmlNode[] trimmed = new XmlNode[childCount];
+            System.arraycopy(children, 0, trimmed, 0, childCount);
+            children = trimmed;
+        }
     }
 
     public XmlNode getParent() {
@@ -135,7 +311,30 @@ public class XmlNode {
     }
 
     public int getChildCount() {
-        return children == null ? 0 : children.size();
+        return childCount;
+    }
+
+    /**
+     * @return Position of this node within its parent's children, 0 for a root
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    public XmlNode getNextSibling() {
+        return parent != null && index + 1 < parent.childCount
+                ? parent.children[index + 1] : null;
+    }
+
+    public XmlNode getPreviousSibling() {
+        return parent != null && index > 0 ? parent.children[index - 1] : null;
+    }
+
+    public XmlNode getChild(int index) {
+        if (index < 0 || index >= childCount)
+            throw new IndexOutOfBoundsException("Invalid child index " + index);
+
+        return children[index];
     }
 
     public void accept(NodeVisitor visitor) {
@@ -143,15 +342,73 @@ public class XmlNode {
     }
 
     public void visitChildren(NodeVisitor visitor) {
-        if (children != null) {
-            for (XmlNode node : children)
-                node.accept(visitor);
+        for (int i = 0; i < childCount; i++)
+            children[i].accept(visitor);
+    }
+
+    /**
+     * Walks this node &amp; its subtree in document order, calling the visitor
+     * on entering &amp; leaving every node. The walk uses parent links instead of
+     * recursion, so deep documents cannot overflow the stack.
+     * @return False if the visitor stopped the walk early
+     */
+    public boolean walk(TreeVisitor visitor) {
+        final XmlCursor cursor = new XmlCursor(this);
+        int event;
+        while ((event = cursor.next()) != XmlCursor.DONE) {
+            final int code = event == XmlCursor.START
+                    ? visitor.enter(cursor.getNode())
+                    : visitor.exit(cursor.getNode());
+
+            if (code == TreeVisitor.STOP)
+                return false;
+            if (code == TreeVisitor.SKIP_SUBTREE && event == XmlCursor.START)
+                cursor.skipSubtree();
         }
+
+        return true;
+    }
+
+    /**
+     * Walks this node &amp; its subtree, calling {@link NodeVisitor#visit} on
+     * every node in document order. Unlike {@link #accept(NodeVisitor)} the
+     * visitor does not have to descend on its own.
+     */
+    public void walk(final NodeVisitor visitor) {
+        walk(new TreeVisitor() {
+            @Override
+            public int enter(XmlNode node) {
+                visitor.visit(node);
+                return CONTINUE;
+            }
+
+            @Override
+            public int exit(XmlNode node) {
+                return CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * @return The first descendant in document order accepted by the filter,
+     * or null. The search stops at the first match.
+     */
+    public XmlNode findFirstDescendant(NodeFilter filter) {
+        final XmlCursor cursor = new XmlCursor(this);
+        cursor.nextPreOrder(); // this node
+
+        XmlNode node;
+        while ((node = cursor.nextPreOrder()) != null) {
+            if (filter.accept(node))
+                return node;
+        }
+
+        return null;
     }
 
     public XmlNode findFirst(NodeFilter filter) {
-        for (int i = 0; i < children.size(); i++) {
-            final XmlNode child = children.get(i);
+        for (int i = 0; i < childCount; i++) {
+            final XmlNode child = children[i];
 
             if (filter.accept(child)) {
                 return child;
@@ -168,6 +425,12 @@ public class XmlNode {
     }
 
     public XmlNode[] findAll(NodeFilter filter) {
+        if (filter instanceof NameFilter) {
+            final NameIndex index = getNameIndex();
+            if (index != null)
+                return index.findAll(this, ((NameFilter) filter).getName());
+        }
+
         final ArrayList<XmlNode> ret = new ArrayList<XmlNode>();
         find(filter, ret, true);
         return ret.toArray(new XmlNode[ret.size()]);
@@ -175,16 +438,24 @@ public class XmlNode {
 
     protected void find(NodeFilter filter, List<XmlNode> found,
                         boolean recurse) {
-        for (int i = 0; i < getChildCount(); i++) {
-            final XmlNode child = children.get(i);
+        if (recurse) {
+            final XmlCursor cursor = new XmlCursor(this);
+            cursor.nextPreOrder(); // this node
+
+            XmlNode node;
+            while ((node = cursor.nextPreOrder()) != null) {
+                if (filter.accept(node))
+                    found.add(node);
+            }
+            return;
+        }
+
+        for (int i = 0; i < childCount; i++) {
+            final XmlNode child = children[i];
 
             if (filter.accept(child)) {
                 found.add(child);
             }
-
-            if (recurse) {
-                child.find(filter, found, true);
-            }
         }
     }
 
@@ -193,21 +464,35 @@ public class XmlNode {
     }
 
     public int countAll(NodeFilter filter) {
+        if (filter instanceof NameFilter) {
+            final NameIndex index = getNameIndex();
+            if (index != null)
+                return index.countAll(this, ((NameFilter) filter).getName());
+        }
+
         return count(filter, true);
     }
 
     protected int count(NodeFilter filter, boolean recurse) {
         int ret = 0;
-        for (int i = 0; i < children.size(); i++) {
-            final XmlNode child = children.get(i);
+        if (recurse) {
+            final XmlCursor cursor = new XmlCursor(this);
+            cursor.nextPreOrder(); // this node
+
+            XmlNode node;
+            while ((node = cursor.nextPreOrder()) != null) {
+                if (filter.accept(node))
+                    ret++;
+            }
+            return ret;
+        }
+
+        for (int i = 0; i < childCount; i++) {
+            final XmlNode child = children[i];
 
             if (filter.accept(child)) {
                 ret++;
             }
-
-            if (recurse) {
-                ret += child.count(filter, true);
-            }
         }
 
         return ret;
@@ -215,24 +500,30 @@ public class XmlNode {
 
     public XmlNode findChild(String name) {
         XmlNode ret;
-        if (children != null && children.size() > 0)
-            for (int i = 0; i < this.children.size(); i++) {
-                ret = children.get(i);
-                if (ret.getName().equalsIgnoreCase(name))
-                    return ret;
-            }
+        for (int i = 0; i < childCount; i++) {
+            ret = children[i];
+            if (ret.getName().equalsIgnoreCase(name))
+                return ret;
+        }
 
         return null;
     }
 
     public XmlNode[] findChildren(String name) {
+        final NameIndex index = getNameIndex();
+        if (index != null) {
+            final XmlNode[] ret = index.findChildren(this, name);
+            if (ret != null)
+                return ret;
+        }
+
         return find(new NameFilter(name));
     }
 
     public String getChildValue(String name) {
         XmlNode child;
-        for (int i = 0; i < this.getChildCount(); i++)
-            if ((child = children.get(i)).getName()
+        for (int i = 0; i < childCount; i++)
+            if ((child = children[i]).getName()
                     .equalsIgnoreCase(name)) {
                 return child.getValue();
             }
@@ -240,17 +531,33 @@ public class XmlNode {
         return null;
     }
 
+    /**
+     * @return The next node in document order, or null at the end of the tree.
+     * @see XmlCursor
+     */
     public XmlNode getNext() {
-        if (children != null)
-            return children.get(0);
-        else
-            return parent.getNext(this);
+        if (childCount > 0)
+            return children[0];
+
+        XmlNode node = this;
+        while (node.parent != null) {
+            if (node.index + 1 < node.parent.childCount)
+                return node.parent.children[node.index + 1];
+
+            node = node.parent;
+        }
+
+        return null;
     }
 
+    /**
+     * @return The node following the subtree of the given child in document
+     * order, or null at the end of the tree.
+     */
     public XmlNode getNext(XmlNode node) {
-        int n = children.indexOf(node) + 1;
-        if (n < children.size()) {
-            return children.get(n);
+        int n = indexOf(node) + 1;
+        if (n < childCount) {
+            return children[n];
         } else if (parent != null) {
             return parent.getNext(this);
         } else {
@@ -258,6 +565,92 @@ public class XmlNode {
         }
     }
 
+    private int indexOf(XmlNode node) {
+        if (node.parent == this && node.index < childCount && children[node.index] == node)
+            return node.index;
+
+        for (int i = 0; i < childCount; i++) {
+            if (children[i].equals(node))
+                return i;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Returns a 64 bit hash covering the name, attributes, value &amp; the
+     * whole subtree of this node. Equal subtrees have equal hashes, so two
+     * trees can be compared branch by branch without visiting identical parts,
+     * see {@link XmlDiff}. Attribute order does not affect the hash.
+     * <br/><br/>
+     * Hashes are computed on first use &amp; cached; modifying a node clears
+     * the cached hashes of the node &amp; its ancestors.
+     */
+    public long getContentHash() {
+        if (contentHash != 0)
+            return contentHash;
+
+        // Post-order, so children are always hashed before their parent
+        final XmlCursor cursor = new XmlCursor(this);
+        int event;
+        while ((event = cursor.next()) != XmlCursor.DONE) {
+            final XmlNode node = cursor.getNode();
+            if (node.contentHash != 0) {
+                if (event == XmlCursor.START)
+                    cursor.skipSubtree();
+            } else if (event == XmlCursor.END) {
+                node.contentHash = node.computeContentHash();
+            }
+        }
+
+        return contentHash;
+    }
+
+    private long computeContentHash() {
+        long h = hash(HASH_SEED, name);
+        h = hash(h, value);
+
+        // Attribute order is insignificant in XML, combine commutatively
+        long atts = 0;
+        for (int i = 0; i < attCount; i++)
+            atts += mix(hash(hash(HASH_SEED, attNames[i]), attValues[i]));
+        h = mix(h ^ atts);
+
+        for (int i = 0; i < childCount; i++)
+            h = mix(h * 31 + children[i].contentHash);
+
+        return h == 0 ? 1 : h;
+    }
+
+    /** FNV-1a over the characters of s, null hashes differently from "". */
+    private static long hash(long h, String s) {
+        if (s == null)
+            return mix(h ^ 0x9e3779b97f4a7c15L);
+
+        final int len = s.length();
+        for (int i = 0; i < len; i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return mix(h ^ len);
+    }
+
+    /** 64 bit finalizer from MurmurHash3. */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private void invalidateContentHash() {
+        // A node without a hash never has an ancestor with one
+        for (XmlNode node = this; node != null && node.contentHash != 0; node = node.parent)
+            node.contentHash = 0;
+    }
+
     public String getName() {
         return name;
     }
@@ -276,69 +669,99 @@ public class XmlNode {
 
     public void setValue(String value) {
         this.value = value;
+        invalidateContentHash();
     }
 
-    public String getAttributeValue(String name) {
-        return attMap == null ? null : attMap.get(name);
+    public int getAttributeCount() {
+        return attCount;
     }
 
-    public void setAttributeValue(String name, String value) {
-        if (attMap == null)
-            attMap = new HashMap<String, String>();
+    public String getAttributeName(int index) {
+        if (index < 0 || index >= attCount)
+            throw new IndexOutOfBoundsException("Invalid attribute index " + index);
 
-        attMap.put(name, value);
+        return attNames[index];
     }
 
-    public void setAttributeValue(String name, Object value) {
-        if (attMap == null)
-            attMap = new HashMap<String, String>();
+    public String getAttributeValue(int index) {
+        if (index < 0 || index >= attCount)
+            throw new IndexOutOfBoundsException("Invalid attribute index " + index);
 
-        attMap.put(name, value.toString());
+        return attValues[index];
     }
 
-	public void dump(PrintStream out, boolean pretty) {
-		dump(out, pretty, "");
-	}
-
-    public void dump(PrintStream out, boolean pretty, String prefix) {
-		final String childPrefix = pretty ? prefix + "    " : prefix;
+    public String getAttributeValue(String name) {
+        final int i = attributeIndex(name);
+        return i < 0 ? null : attValues[i];
+    }
 
-		if (pretty) { out.print(prefix); }
+    public void setAttributeValue(String name, String value) {
+        invalidateContentHash();
 
-        out.print('<');
-        out.print(name);
+        final int i = attributeIndex(name);
+        if (i >= 0) {
+            attValues[i] = value;
+            return;
+        }
 
-        if (attMap != null) {
-            for (Entry<String, String> entry : attMap.entrySet()) {
-                out.print(' ');
-                out.print(entry.getKey());
-                out.print("=\"");
-                out.print(entry.getValue());
-                out.print("\"");
-            }
+        if (attNames == null) {
+            attNames = new String[1];
+            attValues = new String[1];
+        } else if (attCount == attNames.length) {
+            final String[] names = new String[attCount + 1];
+            final String[] values = new String[attCount + 1];
+            System.arraycopy(attNames, 0, names, 0, attCount);
+            System.arraycopy(attValues, 0, values, 0, attCount);
+            attNames = names;
+            attValues = values;
         }
 
-        out.print('>');
+        attNames[attCount] = name.intern();
+        attValues[attCount++] = value;
+    }
 
-		if (pretty) { out.println(); }
+    public void setAttributeValue(String name, Object value) {
+        setAttributeValue(name, value.toString());
+    }
 
-		if (value != null) {
-			if (pretty) { out.print(childPrefix); }
-			out.print(value);
-			if (pretty) { out.println(); }
-		}
+    int attributeIndex(String name) {
+        // Names are interned, so try identity before falling back to equals
+        for (int i = 0; i < attCount; i++) {
+            if (attNames[i] == name)
+                return i;
+        }
 
-        for (int i = 0; i < getChildCount(); i++) {
-            children.get(i).dump(out, pretty, childPrefix);
+        for (int i = 0; i < attCount; i++) {
+            if (attNames[i].equals(name))
+                return i;
         }
 
-		if (pretty) { out.print(prefix); }
+        return -1;
+    }
 
-        out.print("</");
-        out.print(name);
-        out.print('>');
+	public void dump(PrintStream out, boolean pretty) {
+		dump(out, pretty, "");
+	}
+
+    /**
+     * Writes this node &amp; its subtree as UTF-8 XML.
+     * @param out Destination stream
+     * @param pretty True to indent nested elements
+     * @param prefix Written at the start of every line in pretty mode
+     * @see XmlWriter
+     */
+    public void dump(PrintStream out, boolean pretty, String prefix) {
+        try {
+            final XmlWriter writer = new XmlWriter(new OutputStreamWriter(out, "UTF-8"));
+            writer.setPretty(pretty);
+            writer.setLinePrefix(prefix);
+            writer.write(this);
+            writer.flush();
+        } catch (IOException e) {
+            // PrintStream never throws, callers check out.checkError()
+        }
 
-		if (pretty) { out.println(); }
+        if (pretty) { out.println(); }
     }
 
     @Override
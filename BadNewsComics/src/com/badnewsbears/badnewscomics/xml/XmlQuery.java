@@ -0,0 +1,518 @@
+package com.badnewsbears.badnewscomics.xml;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Compiled path query over an {@link XmlNode} tree using a small subset of
+ * XPath. Compile a query once &amp; evaluate it against any number of context
+ * nodes; results are produced lazily while iterating, without intermediate
+ * arrays.
+ * <br/><br/>
+ * Supported syntax, always relative to the context node:
+ * <ul>
+ * <li><code>a/b</code> - child step, <code>a//b</code> - descendant step,
+ * a leading <code>//</code> selects descendants of the context node</li>
+ * <li><code>*</code> - any element; element names compare case-insensitively</li>
+ * <li><code>[@lang]</code>, <code>[@lang='en']</code>, <code>[@lang!='en']</code>
+ * - attribute predicates</li>
+ * <li><code>[2]</code> - positional predicate, 1-based &amp; counted among the
+ * nodes a step selects for each context node</li>
+ * </ul>
+ * For example <code>series//comic[@lang='en']</code> selects every English
+ * comic below each series child of the context node. Results are in document
+ * order &amp; each node is returned once.
+ * <br/><br/>
+ * Results are produced lazily unless a descendant step is followed by
+ * another step, as in <code>//a/b</code>. Such a step can select nested
+ * nodes whose later steps reach the same or earlier nodes, so those queries
+ * collect all matches before returning the first &amp; then order them in
+ * one pass over the context node's subtree.
+ */
+public final class XmlQuery {
+
+    private final String _path;
+    private final Step[] _steps;
+    private final boolean _nested; // a descendant step is followed by another step
+
+    private XmlQuery(final String path, final Step[] steps) {
+        _path = path;
+        _steps = steps;
+
+        boolean nested = false;
+        for (int i = 0; i < steps.length - 1; i++)
+            nested |= steps[i].descendant;
+        _nested = nested;
+    }
+
+    /**
+     * @param path Query text, see {@link XmlQuery}
+     * @return The compiled query
+     * @throws IllegalArgumentException If the query cannot be parsed
+     */
+    public static XmlQuery compile(final String path) {
+        if (path == null)
+            throw new IllegalArgumentException("path must not be null");
+
+        return new XmlQuery(path, new Parser(path).parse());
+    }
+
+    /**
+     * @return Lazy iterator over all nodes matching this query below the
+     * given context node
+     */
+    public Iterator<XmlNode> iterator(final XmlNode context) {
+        return evaluate(context);
+    }
+
+    /**
+     * @return Lazy view of the matches for use in for-each loops
+     */
+    public Iterable<XmlNode> select(final XmlNode context) {
+        return new Iterable<XmlNode>() {
+            @Override
+            public Iterator<XmlNode> iterator() {
+                return evaluate(context);
+            }
+        };
+    }
+
+    /**
+     * @return The first match in document order, or null if there is none.
+     * Unless matches have to be ordered, evaluation stops at the first match.
+     */
+    public XmlNode first(final XmlNode context) {
+        final Iterator<XmlNode> evaluation = evaluate(context);
+        return evaluation.hasNext() ? evaluation.next() : null;
+    }
+
+    /**
+     * @return The number of matches below the given context node
+     */
+    public int count(final XmlNode context) {
+        if (_nested)
+            return new OrderedEvaluation(context).remaining;
+
+        final Evaluation evaluation = new Evaluation(context);
+        int ret = 0;
+        while (evaluation.advance() != null)
+            ret++;
+        return ret;
+    }
+
+    @Override
+    public String toString() {
+        return _path;
+    }
+
+    //			        *********************************
+    // ================ *          Evaluation           * ==================
+    //                  *********************************
+
+    private Iterator<XmlNode> evaluate(final XmlNode context) {
+        return _nested ? new OrderedEvaluation(context) : new Evaluation(context);
+    }
+
+    /**
+     * Depth-first evaluation keeping one scan position per step. Child steps
+     * scan by index, descendant steps use a reusable {@link XmlCursor}.
+     */
+    private class Evaluation implements Iterator<XmlNode> {
+
+        private final XmlNode[] context;
+        private final int[] childPos;
+        private final XmlCursor[] cursors;
+        private final int[][] counters;
+        private final boolean[] exhausted;
+        private int level;
+
+        private XmlNode next;
+        private boolean done;
+
+        Evaluation(final XmlNode root) {
+            final int n = _steps.length;
+            context = new XmlNode[n];
+            childPos = new int[n];
+            cursors = new XmlCursor[n];
+            counters = new int[n][];
+            exhausted = new boolean[n];
+
+            for (int i = 0; i < n; i++) {
+                if (_steps[i].descendant)
+                    cursors[i] = new XmlCursor(null);
+                counters[i] = new int[_steps[i].predicates.length];
+            }
+
+            if (root == null)
+                done = true;
+            else
+                enter(0, root);
+        }
+
+        /**
+         * Starts scanning the given step from a new context node.
+         */
+        private void enter(final int step, final XmlNode node) {
+            final Step s = _steps[step];
+
+            // A descendant scan of an earlier context already covered this one
+            exhausted[step] = s.descendant && !s.positional
+                    && context[step] != null && isAncestor(context[step], node);
+            if (exhausted[step])
+                return;
+
+            context[step] = node;
+            childPos[step] = 0;
+            for (int i = 0; i < counters[step].length; i++)
+                counters[step][i] = 0;
+
+            if (s.descendant) {
+                cursors[step].reset(node);
+                cursors[step].nextPreOrder(); // the context node itself
+            }
+        }
+
+        /**
+         * @return Next candidate for the given step, or null once its current
+         * context node is exhausted
+         */
+        private XmlNode scan(final int step) {
+            if (exhausted[step])
+                return null;
+
+            final Step s = _steps[step];
+            while (true) {
+                final XmlNode node;
+                if (s.descendant) {
+                    node = cursors[step].nextPreOrder();
+                } else {
+                    final XmlNode parent = context[step];
+                    node = childPos[step] < parent.getChildCount()
+                            ? parent.getChild(childPos[step]++) : null;
+                }
+
+                if (node == null) {
+                    exhausted[step] = true;
+                    return null;
+                }
+
+                switch (s.test(node, counters[step])) {
+                    case Step.ACCEPT:
+                        return node;
+                    case Step.FINISHED:
+                        exhausted[step] = true;
+                        return null;
+                }
+            }
+        }
+
+        XmlNode advance() {
+            if (done)
+                return null;
+
+            while (true) {
+                final XmlNode node = scan(level);
+                if (node == null) {
+                    if (level == 0) {
+                        done = true;
+                        return null;
+                    }
+                    level--;
+                } else if (level == _steps.length - 1) {
+                    return node;
+                } else {
+                    enter(++level, node);
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null)
+                next = advance();
+            return next != null;
+        }
+
+        @Override
+        public XmlNode next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+
+            final XmlNode ret = next;
+            next = null;
+            return ret;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Collects the matches of an {@link Evaluation} without duplicates, then
+     * returns them in document order by walking the context node's subtree
+     * until all of them were seen.
+     */
+    private class OrderedEvaluation implements Iterator<XmlNode> {
+
+        private final IdentityHashMap<XmlNode, Boolean> matches = new IdentityHashMap<XmlNode, Boolean>();
+        private final XmlCursor cursor;
+        int remaining;
+
+        private XmlNode next;
+
+        OrderedEvaluation(final XmlNode root) {
+            final Evaluation evaluation = new Evaluation(root);
+            XmlNode node;
+            while ((node = evaluation.advance()) != null)
+                matches.put(node, Boolean.TRUE);
+
+            remaining = matches.size();
+            cursor = new XmlCursor(root);
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && remaining > 0) {
+                final XmlNode node = cursor.nextPreOrder();
+                if (matches.containsKey(node)) {
+                    next = node;
+                    remaining--;
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public XmlNode next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+
+            final XmlNode ret = next;
+            next = null;
+            return ret;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static boolean isAncestor(final XmlNode ancestor, XmlNode node) {
+        while ((node = node.getParent()) != null) {
+            if (node == ancestor)
+                return true;
+        }
+        return false;
+    }
+
+    //			        *********************************
+    // ================ *        Compiled steps         * ==================
+    //                  *********************************
+
+    private static class Step {
+
+        static final int
+            ACCEPT   = 0,
+            REJECT   = 1,
+            FINISHED = 2; // no further node can match for this context
+
+        final boolean descendant;
+        final String name; // null for *
+        final Predicate[] predicates;
+        final boolean positional;
+
+        Step(final boolean descendant, final String name, final Predicate[] predicates) {
+            this.descendant = descendant;
+            this.name = name;
+            this.predicates = predicates;
+
+            boolean positional = false;
+            for (Predicate predicate : predicates)
+                positional |= predicate.position > 0;
+            this.positional = positional;
+        }
+
+        int test(final XmlNode node, final int[] counters) {
+            if (name != null && name != node.getName() && !name.equalsIgnoreCase(node.getName()))
+                return REJECT;
+
+            for (int i = 0; i < predicates.length; i++) {
+                final Predicate predicate = predicates[i];
+                if (predicate.position > 0) {
+                    final int position = ++counters[i];
+                    if (position > predicate.position)
+                        return FINISHED;
+                    if (position < predicate.position)
+                        return REJECT;
+                } else if (!predicate.accept(node)) {
+                    return REJECT;
+                }
+            }
+
+            return ACCEPT;
+        }
+    }
+
+    private static class Predicate {
+
+        final int position;     // > 0 for positional predicates
+        final String attribute;
+        final String value;     // null to only test for presence
+        final boolean negate;
+
+        Predicate(final int position) {
+            this.position = position;
+            this.attribute = null;
+            this.value = null;
+            this.negate = false;
+        }
+
+        Predicate(final String attribute, final String value, final boolean negate) {
+            this.position = 0;
+            this.attribute = attribute;
+            this.value = value;
+            this.negate = negate;
+        }
+
+        boolean accept(final XmlNode node) {
+            final String actual = node.getAttributeValue(attribute);
+            if (value == null)
+                return actual != null;
+
+            return actual != null && (value.equals(actual) != negate);
+        }
+    }
+
+    //			        *********************************
+    // ================ *            Parser             * ==================
+    //                  *********************************
+
+    private static class Parser {
+
+        private final String text;
+        private int pos;
+
+        Parser(final String text) {
+            this.text = text;
+        }
+
+        Step[] parse() {
+            final ArrayList<Step> steps = new ArrayList<Step>();
+
+            boolean descendant = false;
+            if (text.startsWith("//")) {
+                descendant = true;
+                pos = 2;
+            } else if (text.startsWith("/")) {
+                throw error("Absolute paths are not supported");
+            }
+
+            while (true) {
+                final String name = readName();
+                final ArrayList<Predicate> predicates = new ArrayList<Predicate>();
+                while (peek() == '[')
+                    predicates.add(readPredicate());
+
+                steps.add(new Step(descendant, "*".equals(name) ? null : name.intern(),
+                        predicates.toArray(new Predicate[predicates.size()])));
+
+                if (pos == text.length())
+                    break;
+
+                expect('/');
+                descendant = peek() == '/';
+                if (descendant)
+                    pos++;
+            }
+
+            return steps.toArray(new Step[steps.size()]);
+        }
+
+        private Predicate readPredicate() {
+            expect('[');
+            skipWhitespace();
+
+            final Predicate ret;
+            if (peek() == '@') {
+                pos++;
+                final String attribute = readName();
+                skipWhitespace();
+
+                if (peek() == ']') {
+                    ret = new Predicate(attribute, null, false);
+                } else {
+                    final boolean negate = peek() == '!';
+                    if (negate)
+                        pos++;
+                    expect('=');
+                    skipWhitespace();
+                    ret = new Predicate(attribute, readLiteral(), negate);
+                }
+            } else {
+                final int start = pos;
+                while (pos < text.length() && Character.isDigit(text.charAt(pos)))
+                    pos++;
+                if (start == pos)
+                    throw error("Expected attribute test or position");
+
+                final int position = Integer.parseInt(text.substring(start, pos));
+                if (position < 1)
+                    throw error("Positions start at 1");
+                ret = new Predicate(position);
+            }
+
+            skipWhitespace();
+            expect(']');
+            return ret;
+        }
+
+        private String readName() {
+            final int start = pos;
+            while (pos < text.length() && "/[]=!@'\" \t".indexOf(text.charAt(pos)) < 0)
+                pos++;
+
+            if (start == pos)
+                throw error("Expected name");
+            return text.substring(start, pos);
+        }
+
+        private String readLiteral() {
+            final char quote = peek();
+            if (quote != '\'' && quote != '"')
+                throw error("Expected quoted value");
+
+            final int end = text.indexOf(quote, pos + 1);
+            if (end < 0)
+                throw error("Unterminated value");
+
+            final String ret = text.substring(pos + 1, end);
+            pos = end + 1;
+            return ret;
+        }
+
+        private void skipWhitespace() {
+            while (pos < text.length() && Character.isWhitespace(text.charAt(pos)))
+                pos++;
+        }
+
+        private char peek() {
+            return pos < text.length() ? text.charAt(pos) : 0;
+        }
+
+        private void expect(final char c) {
+            if (peek() != c)
+                throw error("Expected '" + c + "'");
+            pos++;
+        }
+
+        private IllegalArgumentException error(final String message) {
+            return new IllegalArgumentException(
+                    message + " at position " + pos + " in query: " + text);
+        }
+    }
+}
@@ -0,0 +1,408 @@
+package com.badnewsbears.badnewscomics.xml;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Compact binary snapshot of a parsed {@link XmlNode} tree. A snapshot holds a
+ * string table &amp; a fixed size node table in document order, so reloading
+ * it costs one memory map &amp; a header read. Nodes are addressed by id (the
+ * root is 0) &amp; their strings are decoded on first access;
+ * {@link #toXmlNode(int)} materializes a subtree once a caller needs real
+ * {@link XmlNode} objects.
+ * <br/><br/>
+ * Every snapshot records a checksum of the XML source it was built from so
+ * stale snapshots can be detected, see {@link XmlSnapshotCache}.
+ */
+public class XmlSnapshot {
+
+    public static final int NO_NODE = -1;
+
+    private static final int MAGIC   = 0x58534E50; // "XSNP"
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 40;
+    private static final int NODE_SIZE   = 28; // name, value, parent, next sibling, child count, att start, att count
+    private static final int ATT_SIZE    = 8;  // name, value
+
+    private static final int NO_STRING = -1;
+
+    private final ByteBuffer _buffer;
+    private final long _sourceChecksum;
+    private final int _nodeCount;
+    private final int _stringOffsets, _stringData, _nodes, _atts;
+    private final String[] _strings;
+
+    private XmlSnapshot(final ByteBuffer buffer) throws IOException {
+        _buffer = buffer;
+
+        if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC)
+            throw new IOException("Not an XML snapshot");
+        if (buffer.getInt(4) != VERSION)
+            throw new IOException("Unsupported snapshot version " + buffer.getInt(4));
+
+        _sourceChecksum = buffer.getLong(8);
+        final int stringCount = buffer.getInt(16);
+        _nodeCount = buffer.getInt(20);
+        _stringOffsets = buffer.getInt(24);
+        _stringData = buffer.getInt(28);
+        _nodes = buffer.getInt(32);
+        _atts = buffer.getInt(36);
+
+        // The tables follow each other as write() lays them out; the last
+        // string offset &amp; the attributes of the last node (stored in
+        // document order too) give the ends of the variable sized ones
+        final int limit = buffer.limit();
+        if (stringCount < 0 || _nodeCount < 0 || _stringOffsets != HEADER_SIZE
+                || _stringData != _stringOffsets + (stringCount + 1L) * 4)
+            throw new IOException("Corrupt XML snapshot header");
+        if (_stringData > limit)
+            throw new IOException("Truncated XML snapshot");
+
+        final long stringEnd = _stringData + (long) buffer.getInt(_stringData - 4);
+        if (stringEnd < _stringData || stringEnd > limit)
+            throw new IOException("Truncated XML snapshot");
+        if (_nodes != align((int) stringEnd) || _atts != _nodes + (long) _nodeCount * NODE_SIZE)
+            throw new IOException("Corrupt XML snapshot header");
+        if (_atts > limit)
+            throw new IOException("Truncated XML snapshot");
+
+        final int last = _atts - NODE_SIZE;
+        final long attCount = _nodeCount == 0 ? 0
+                : (long) buffer.getInt(last + 20) + buffer.getInt(last + 24);
+        if (_atts + attCount * ATT_SIZE != limit)
+            throw new IOException("Truncated XML snapshot");
+
+        _strings = new String[stringCount];
+    }
+
+    /**
+     * Memory maps a snapshot file. Only the header is read, along with the
+     * ends of the tables to check they fit the file.
+     * @throws IOException If the file cannot be mapped, is not a snapshot or
+     * is truncated
+     */
+    public static XmlSnapshot open(final File file) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = raf.getChannel();
+            return new XmlSnapshot(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * @return Checksum of the XML source recorded when the snapshot was written
+     */
+    public long getSourceChecksum() {
+        return _sourceChecksum;
+    }
+
+    public int getNodeCount() {
+        return _nodeCount;
+    }
+
+    public String getName(final int node) {
+        return getString(_buffer.getInt(record(node)));
+    }
+
+    public String getValue(final int node) {
+        return getString(_buffer.getInt(record(node) + 4));
+    }
+
+    public int getParent(final int node) {
+        return _buffer.getInt(record(node) + 8);
+    }
+
+    public int getNextSibling(final int node) {
+        return _buffer.getInt(record(node) + 12);
+    }
+
+    public int getChildCount(final int node) {
+        return _buffer.getInt(record(node) + 16);
+    }
+
+    /**
+     * @return Id of the first child, or {@link #NO_NODE}. Nodes are stored in
+     * document order, so the first child always directly follows its parent.
+     */
+    public int getFirstChild(final int node) {
+        return getChildCount(node) > 0 ? node + 1 : NO_NODE;
+    }
+
+    public int getAttributeCount(final int node) {
+        return _buffer.getInt(record(node) + 24);
+    }
+
+    public String getAttributeName(final int node, final int index) {
+        return getString(_buffer.getInt(attribute(node, index)));
+    }
+
+    public String getAttributeValue(final int node, final int index) {
+        return getString(_buffer.getInt(attribute(node, index) + 4));
+    }
+
+    public String getAttributeValue(final int node, final String name) {
+        final int count = getAttributeCount(node);
+        for (int i = 0; i < count; i++) {
+            if (getAttributeName(node, i).equals(name))
+                return getAttributeValue(node, i);
+        }
+        return null;
+    }
+
+    /**
+     * @return Id of the first child with the given name, compared
+     * case-insensitively, or {@link #NO_NODE}
+     */
+    public int findChild(final int node, final String name) {
+        for (int child = getFirstChild(node); child != NO_NODE; child = getNextSibling(child)) {
+            if (getName(child).equalsIgnoreCase(name))
+                return child;
+        }
+        return NO_NODE;
+    }
+
+    /**
+     * Builds real {@link XmlNode} objects for the subtree of the given node.
+     * @return The detached subtree
+     */
+    public XmlNode toXmlNode(final int node) {
+        final XmlNode ret = createNode(node);
+
+        // Ancestors of the node being added, as snapshot ids & their objects
+        int[] ids = new int[16];
+        XmlNode[] open = new XmlNode[16];
+        int depth = 0;
+        ids[0] = node;
+        open[0] = ret;
+
+        final int end = subtreeEnd(node);
+        for (int id = node + 1; id < end; id++) {
+            final int parent = getParent(id);
+            while (ids[depth] != parent)
+                depth--;
+
+            final XmlNode child = createNode(id);
+            open[depth].add(child);
+
+            if (getChildCount(id) > 0) {
+                if (++depth == ids.length) {
+                    final int[] grownIds = new int[ids.length * 2];
+                    final XmlNode[] grownOpen = new XmlNode[ids.length * 2];
+                    System.arraycopy(ids, 0, grownIds, 0, ids.length);
+                    System.arraycopy(open, 0, grownOpen, 0, ids.length);
+                    ids = grownIds;
+                    open = grownOpen;
+                }
+                ids[depth] = id;
+                open[depth] = child;
+            }
+        }
+
+        return ret;
+    }
+
+    private XmlNode createNode(final int id) {
+        final XmlNode ret = new XmlNode(getName(id));
+        ret.setValue(getValue(id));
+
+        final int count = getAttributeCount(id);
+        for (int i = 0; i < count; i++)
+            ret.setAttributeValue(getAttributeName(id, i), getAttributeValue(id, i));
+        return ret;
+    }
+
+    /**
+     * @return Id following the subtree of the given node in document order
+     */
+    private int subtreeEnd(int node) {
+        int next;
+        while ((next = getNextSibling(node)) == NO_NODE) {
+            node = getParent(node);
+            if (node == NO_NODE)
+                return _nodeCount;
+        }
+        return next;
+    }
+
+    private int record(final int node) {
+        if (node < 0 || node >= _nodeCount)
+            throw new IndexOutOfBoundsException("Invalid node id " + node);
+        return _nodes + node * NODE_SIZE;
+    }
+
+    private int attribute(final int node, final int index) {
+        final int record = record(node);
+        if (index < 0 || index >= _buffer.getInt(record + 24))
+            throw new IndexOutOfBoundsException("Invalid attribute index " + index);
+        return _atts + (_buffer.getInt(record + 20) + index) * ATT_SIZE;
+    }
+
+    private String getString(final int id) {
+        if (id == NO_STRING)
+            return null;
+
+        String ret = _strings[id];
+        if (ret == null) {
+            final int start = _buffer.getInt(_stringOffsets + id * 4);
+            final int end = _buffer.getInt(_stringOffsets + id * 4 + 4);
+            final byte[] bytes = new byte[end - start];
+            final ByteBuffer data = _buffer.duplicate();
+            data.position(_stringData + start);
+            data.get(bytes);
+
+            ret = decode(bytes);
+            _strings[id] = ret;
+        }
+        return ret;
+    }
+
+    //			        *********************************
+    // ================ *            Writing            * ==================
+    //                  *********************************
+
+    /**
+     * Writes a snapshot of the given subtree. The file is written under a
+     * temporary name &amp; renamed into place so readers never see a partial
+     * snapshot.
+     * @param root Root of the tree, stored as node 0
+     * @param file Destination file
+     * @param sourceChecksum Checksum of the XML source the tree was parsed from
+     * @throws IOException If the snapshot cannot be written
+     */
+    public static void write(final XmlNode root, final File file, final long sourceChecksum)
+            throws IOException {
+        final HashMap<String, Integer> stringIds = new HashMap<String, Integer>();
+        final ArrayList<byte[]> strings = new ArrayList<byte[]>();
+
+        int nodeCount = 0, attCount = 0;
+        final XmlCursor cursor = new XmlCursor(root);
+        XmlNode node;
+        while ((node = cursor.nextPreOrder()) != null) {
+            nodeCount++;
+            attCount += node.getAttributeCount();
+        }
+
+        final int stringOffsets = HEADER_SIZE;
+        final int[] nodes = new int[nodeCount * 7];
+        final int[] atts = new int[attCount * 2];
+
+        // Pre-order numbering; an END event closes a node's subtree, so the
+        // node following it in document order is its next sibling
+        int id = 0, att = 0;
+        int[] open = new int[16]; // ids of the ancestors of the current node
+        int depth = -1;
+        int event;
+        cursor.reset(root);
+        while ((event = cursor.next()) != XmlCursor.DONE) {
+            node = cursor.getNode();
+            if (event == XmlCursor.END) {
+                final int closed = open[depth--];
+                nodes[closed * 7 + 3] = node == root || node.getNextSibling() == null ? NO_NODE : id;
+                continue;
+            }
+
+            final int r = id * 7;
+            nodes[r] = stringId(node.getName(), stringIds, strings);
+            nodes[r + 1] = stringId(node.getValue(), stringIds, strings);
+            nodes[r + 2] = depth < 0 ? NO_NODE : open[depth];
+            nodes[r + 4] = node.getChildCount();
+            nodes[r + 5] = att / 2;
+            nodes[r + 6] = node.getAttributeCount();
+
+            for (int i = 0; i < node.getAttributeCount(); i++) {
+                atts[att++] = stringId(node.getAttributeName(i), stringIds, strings);
+                atts[att++] = stringId(node.getAttributeValue(i), stringIds, strings);
+            }
+
+            if (++depth == open.length) {
+                final int[] grown = new int[open.length * 2];
+                System.arraycopy(open, 0, grown, 0, open.length);
+                open = grown;
+            }
+            open[depth] = id++;
+        }
+
+        int stringBytes = 0;
+        for (byte[] bytes : strings)
+            stringBytes += bytes.length;
+
+        final int stringData = stringOffsets + (strings.size() + 1) * 4;
+        final int nodeTable = align(stringData + stringBytes);
+        final int attTable = nodeTable + nodeCount * NODE_SIZE;
+        final int size = attTable + attCount * ATT_SIZE;
+
+        final ByteBuffer out = ByteBuffer.allocate(size);
+        out.putInt(MAGIC).putInt(VERSION).putLong(sourceChecksum)
+                .putInt(strings.size()).putInt(nodeCount)
+                .putInt(stringOffsets).putInt(stringData).putInt(nodeTable).putInt(attTable);
+
+        int offset = 0;
+        for (byte[] bytes : strings) {
+            out.putInt(offset);
+            offset += bytes.length;
+        }
+        out.putInt(offset);
+        for (byte[] bytes : strings)
+            out.put(bytes);
+
+        out.position(nodeTable);
+        for (int value : nodes)
+            out.putInt(value);
+        for (int value : atts)
+            out.putInt(value);
+        out.flip();
+
+        final File temp = new File(file.getPath() + ".tmp");
+        final FileOutputStream fos = new FileOutputStream(temp);
+        try {
+            final FileChannel channel = fos.getChannel();
+            while (out.hasRemaining())
+                channel.write(out);
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+
+        if (!temp.renameTo(file)) {
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+            throw new IOException("Could not move snapshot into place: " + file);
+        }
+    }
+
+    private static int stringId(final String s, final HashMap<String, Integer> ids,
+            final ArrayList<byte[]> strings) throws UnsupportedEncodingException {
+        if (s == null)
+            return NO_STRING;
+
+        Integer id = ids.get(s);
+        if (id == null) {
+            id = strings.size();
+            ids.put(s, id);
+            strings.add(s.getBytes("UTF-8"));
+        }
+        return id;
+    }
+
+    private static int align(final int offset) {
+        return (offset + 3) & ~3;
+    }
+
+    private static String decode(final byte[] bytes) {
+        try {
+            return new String(bytes, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.badnewsbears.badnewscomics.xml;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.xml.sax.SAXException;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.badnewsbears.badnewscomics.util.FileUtils;
+
+/**
+ * Cache of {@link XmlSnapshot}s for XML files that are parsed repeatedly, e.g.
+ * on every cold start. Snapshots live in
+ * {@link FileUtils#getCacheDirectory(Context, Class)} for {@link XmlNode} &amp;
+ * are keyed by a CRC32 checksum of the source file, so an unchanged source is
+ * reloaded with a single memory map instead of a full SAX parse.
+ */
+public class XmlSnapshotCache {
+
+    private static final String TAG = XmlSnapshotCache.class.getSimpleName();
+
+    private static final String EXTENSION = ".xsnp";
+
+    private static final long MAP_CHUNK_SIZE = 8L * 1024 * 1024;
+
+    private final File _directory;
+
+    public XmlSnapshotCache(final Context context) {
+        _directory = FileUtils.getCacheDirectory(context, XmlNode.class);
+    }
+
+    /**
+     * Loads the snapshot for the given XML file, parsing the file &amp; writing
+     * a new snapshot if there is none or the source has changed since.
+     * @param source XML file
+     * @return Snapshot of the parsed file
+     */
+    public XmlSnapshot open(final File source) throws IOException,
+            ParserConfigurationException, SAXException {
+        final long checksum = checksum(source);
+        final String key = source.getName() + '-' + Integer.toHexString(source.getPath().hashCode());
+
+        final XmlSnapshot cached = load(key, checksum);
+        if (cached != null)
+            return cached;
+
+        final InputStream in = new FileInputStream(source);
+        final XmlNode root;
+        try {
+            root = XmlNode.parse(in);
+        } finally {
+            in.close();
+        }
+
+        store(key, checksum, root);
+        return load(key, checksum);
+    }
+
+    /**
+     * @param key Name identifying the source document
+     * @param checksum Checksum of the current source, see {@link #checksum(File)}
+     * @return The cached snapshot, or null if there is none or it was built
+     * from a different version of the source
+     */
+    public XmlSnapshot load(final String key, final long checksum) {
+        final File file = getFile(key);
+        if (!file.exists())
+            return null;
+
+        try {
+            final XmlSnapshot snapshot = XmlSnapshot.open(file);
+            if (snapshot.getSourceChecksum() == checksum)
+                return snapshot;
+        } catch (IOException e) {
+            Log.w(TAG, "Discarding unreadable snapshot " + file, e);
+        }
+
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+        return null;
+    }
+
+    /**
+     * Writes a snapshot of the given tree, replacing any previous one.
+     * @param key Name identifying the source document
+     * @param checksum Checksum of the source the tree was parsed from
+     * @param root Parsed tree
+     */
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    public void store(final String key, final long checksum, final XmlNode root)
+            throws IOException {
+        _directory.mkdirs();
+        XmlSnapshot.write(root, getFile(key), checksum);
+    }
+
+    /**
+     * Removes the snapshot for the given key.
+     * @return true if a snapshot was deleted
+     */
+    public boolean remove(final String key) {
+        return getFile(key).delete();
+    }
+
+    private File getFile(final String key) {
+        return new File(_directory, key + EXTENSION);
+    }
+
+    /**
+     * Calculates the CRC32 checksum of a file through memory mapped chunks.
+     * @param file Source file
+     * @return The checksum
+     */
+    public static long checksum(final File file) throws IOException {
+        final CRC32 crc = new CRC32();
+        final byte[] buffer = new byte[64 * 1024];
+
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = raf.getChannel();
+            final long size = channel.size();
+            for (long position = 0; position < size; position += MAP_CHUNK_SIZE) {
+                final MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY,
+                        position, Math.min(MAP_CHUNK_SIZE, size - position));
+                while (map.hasRemaining()) {
+                    final int length = Math.min(buffer.length, map.remaining());
+                    map.get(buffer, 0, length);
+                    crc.update(buffer, 0, length);
+                }
+            }
+        } finally {
+            raf.close();
+        }
+
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,158 @@
+package com.badnewsbears.badnewscomics.xml;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Streaming alternative to {@link XmlNode#parse(InputStream)}. Callers register
+ * element paths such as <code>catalog/comic</code> &amp; receive a detached
+ * {@link XmlNode} subtree for every matching element as soon as its end tag has
+ * been read. Nothing outside of a matched subtree is ever materialized, so peak
+ * memory is bounded by the largest match rather than the size of the document.
+ * <br/><br/>
+ * Paths are slash separated, start at the document element &amp; are compared
+ * case-insensitively. A <code>*</code> segment matches any single element.
+ */
+public class XmlStreamParser {
+
+    private final ArrayList<String[]> _paths = new ArrayList<String[]>();
+    private final ArrayList<NodeVisitor> _visitors = new ArrayList<NodeVisitor>();
+    private int _options;
+
+    /**
+     * @param options Text handling options as for {@link XmlNode#parse(InputStream, int)}
+     */
+    public void setOptions(final int options) {
+        _options = options;
+    }
+
+    /**
+     * Registers a callback for every element found at the given path.
+     * @param path Slash separated element path, e.g. <code>catalog/comic</code>
+     * @param visitor Receives each matched subtree; the node's parent is null
+     */
+    public void register(final String path, final NodeVisitor visitor) {
+        if (path == null || visitor == null)
+            throw new IllegalArgumentException("path and visitor must not be null");
+
+        final String[] segments = trimSlashes(path).split("/");
+        for (String segment : segments) {
+            if (segment.length() == 0)
+                throw new IllegalArgumentException("Invalid element path: " + path);
+        }
+
+        _paths.add(segments);
+        _visitors.add(visitor);
+    }
+
+    /**
+     * Parses the given stream, dispatching matched subtrees to their visitors
+     * in document order.
+     */
+    public void parse(final InputStream in) throws IOException,
+            ParserConfigurationException, SAXException {
+        final SAXParser saxParser = ParserPool.obtain();
+        try {
+            saxParser.parse(in, new StreamHandler());
+        } finally {
+            ParserPool.release(saxParser);
+        }
+    }
+
+    private static String trimSlashes(String path) {
+        int start = 0, end = path.length();
+        while (start < end && path.charAt(start) == '/') start++;
+        while (end > start && path.charAt(end - 1) == '/') end--;
+        return path.substring(start, end);
+    }
+
+    /**
+     * @return Index of the first registered path matching the current element
+     * stack, or -1 if there is none.
+     */
+    private int match(final String[] stack, final int depth) {
+        for (int i = 0; i < _paths.size(); i++) {
+            final String[] path = _paths.get(i);
+            if (path.length != depth)
+                continue;
+
+            int j = 0;
+            while (j < depth && ("*".equals(path[j]) || path[j].equalsIgnoreCase(stack[j])))
+                j++;
+
+            if (j == depth)
+                return i;
+        }
+
+        return -1;
+    }
+
+    private class StreamHandler extends DefaultHandler {
+
+        private String[] stack = new String[16]; // names of open elements outside a match
+        private int depth;
+
+        private final TreeBuilder builder = new TreeBuilder(_options);
+        private int captureDepth;   // depth of the matched subtree's root, 0 if none
+        private NodeVisitor visitor;
+
+        @Override
+        public void startElement(String uri, String localName,
+                String qName, Attributes attributes) throws SAXException {
+            depth++;
+
+            if (captureDepth == 0) {
+                if (depth > stack.length) {
+                    final String[] grown = new String[stack.length * 2];
+                    System.arraycopy(stack, 0, grown, 0, stack.length);
+                    stack = grown;
+                }
+                stack[depth - 1] = qName;
+
+                final int matched = match(stack, depth);
+                if (matched < 0)
+                    return;
+
+                captureDepth = depth;
+                visitor = _visitors.get(matched);
+                builder.startDocument();
+            }
+
+            builder.startElement(uri, localName, qName, attributes);
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName)
+                throws SAXException {
+            if (captureDepth != 0) {
+                builder.endElement(uri, localName, qName);
+
+                if (depth != captureDepth) {
+                    depth--;
+                    return;
+                }
+
+                captureDepth = 0;
+                visitor.visit(builder.detachDocument());
+            }
+
+            stack[depth - 1] = null;
+            depth--;
+        }
+
+        @Override
+        public void characters(char ch[], int start, int length)
+                throws SAXException {
+            if (captureDepth != 0)
+                builder.characters(ch, start, length);
+        }
+    }
+}
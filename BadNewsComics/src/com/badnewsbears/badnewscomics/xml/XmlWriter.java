@@ -0,0 +1,361 @@
+package com.badnewsbears.badnewscomics.xml;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.util.Arrays;
+
+/**
+ * Buffered XML serializer for {@link XmlNode} trees &amp; for streaming
+ * documents without building a tree first. Output goes to a {@link Writer},
+ * or as UTF-8 to a {@link WritableByteChannel} or {@link ByteBuffer}. Markup
+ * is collected in a reused character buffer, text &amp; attribute values are
+ * escaped while being copied &amp; indentation is taken from a cached run of
+ * spaces, so serializing a tree creates no garbage per node.
+ * <br/><br/>
+ * Streaming use:
+ * <pre>
+ * writer.startElement("comic").attribute("id", id).text(title).endElement();
+ * </pre>
+ * Call {@link #flush()} once done; nothing reaches the sink before that or
+ * before the internal buffer fills up.
+ */
+public class XmlWriter {
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final int INDENT_WIDTH = 4;
+
+    private final Writer _writer;
+    private final WritableByteChannel _channel;
+    private final ByteBuffer _target;
+
+    private final char[] _buf = new char[BUFFER_SIZE];
+    private int _pos;
+
+    private CharsetEncoder _encoder;
+    private CharBuffer _chars;
+    private ByteBuffer _bytes;
+
+    private boolean _pretty;
+    private String _linePrefix = "";
+    private char[] _indent = new char[0];
+
+    private String[] _open = new String[16]; // names of open elements
+    private boolean[] _mixed = new boolean[16]; // element holds text, keep its layout
+    private int _depth;
+    private boolean _tagOpen; // start tag written without its closing '>'
+    private boolean _hasChildren;
+    private boolean _started;
+
+    /**
+     * @param out Destination, flushed by {@link #flush()}
+     */
+    public XmlWriter(final Writer out) {
+        _writer = out;
+        _channel = null;
+        _target = null;
+    }
+
+    /**
+     * @param out Destination for UTF-8 encoded output
+     */
+    public XmlWriter(final WritableByteChannel out) {
+        _writer = null;
+        _channel = out;
+        _target = null;
+        _bytes = ByteBuffer.allocate(BUFFER_SIZE * 2);
+        initEncoder();
+    }
+
+    /**
+     * @param out Destination for UTF-8 encoded output
+     * @throws BufferOverflowException From any write method once the buffer
+     * has no space left
+     */
+    public XmlWriter(final ByteBuffer out) {
+        _writer = null;
+        _channel = null;
+        _target = out;
+        initEncoder();
+    }
+
+    private void initEncoder() {
+        _encoder = Charset.forName("UTF-8").newEncoder();
+        _chars = CharBuffer.wrap(_buf);
+    }
+
+    /**
+     * @param pretty True to put every element on its own line, indented by
+     * its depth. Elements holding text are written as they are.
+     */
+    public void setPretty(final boolean pretty) {
+        _pretty = pretty;
+    }
+
+    /**
+     * @param prefix Written at the start of every line in pretty mode
+     */
+    public void setLinePrefix(final String prefix) {
+        _linePrefix = prefix == null ? "" : prefix;
+    }
+
+    //			        *********************************
+    // ================ *             Trees             * ==================
+    //                  *********************************
+
+    /**
+     * Serializes the given node &amp; its subtree.
+     */
+    public void write(final XmlNode node) throws IOException {
+        final XmlCursor cursor = new XmlCursor(node);
+        int event;
+        while ((event = cursor.next()) != XmlCursor.DONE) {
+            final XmlNode current = cursor.getNode();
+            if (event == XmlCursor.END) {
+                endElement();
+                continue;
+            }
+
+            startElement(current.getName());
+            for (int i = 0; i < current.getAttributeCount(); i++)
+                attribute(current.getAttributeName(i), current.getAttributeValue(i));
+            if (current.getValue() != null)
+                text(current.getValue());
+        }
+    }
+
+    //			        *********************************
+    // ================ *           Streaming           * ==================
+    //                  *********************************
+
+    public XmlWriter startElement(final String name) throws IOException {
+        closeStartTag();
+
+        if (_depth == _open.length) {
+            final String[] open = new String[_depth * 2];
+            final boolean[] mixed = new boolean[_depth * 2];
+            System.arraycopy(_open, 0, open, 0, _depth);
+            System.arraycopy(_mixed, 0, mixed, 0, _depth);
+            _open = open;
+            _mixed = mixed;
+        }
+
+        if (_depth == 0 || !_mixed[_depth - 1])
+            newLine(_depth);
+
+        _open[_depth] = name;
+        _mixed[_depth] = false;
+        _depth++;
+
+        write('<');
+        write(name);
+        _tagOpen = true;
+        _hasChildren = false;
+        return this;
+    }
+
+    /**
+     * @param value Written as an empty value if null
+     */
+    public XmlWriter attribute(final String name, final String value) throws IOException {
+        if (!_tagOpen)
+            throw new IllegalStateException("Attributes must directly follow startElement()");
+
+        write(' ');
+        write(name);
+        write('=');
+        write('"');
+        if (value != null)
+            escape(value, true);
+        write('"');
+        return this;
+    }
+
+    /**
+     * @param text Ignored if null
+     */
+    public XmlWriter text(final String text) throws IOException {
+        if (_depth == 0)
+            throw new IllegalStateException("Text must be inside an element");
+        if (text == null)
+            return this;
+
+        closeStartTag();
+        _mixed[_depth - 1] = true;
+        escape(text, false);
+        return this;
+    }
+
+    public XmlWriter endElement() throws IOException {
+        if (_depth == 0)
+            throw new IllegalStateException("No open element");
+
+        _depth--;
+        if (_tagOpen) {
+            write('/');
+            write('>');
+            _tagOpen = false;
+        } else {
+            if (_hasChildren && !_mixed[_depth])
+                newLine(_depth);
+            write('<');
+            write('/');
+            write(_open[_depth]);
+            write('>');
+        }
+
+        _open[_depth] = null;
+        _hasChildren = true;
+        return this;
+    }
+
+    /**
+     * Writes everything buffered so far to the sink &amp; flushes it.
+     */
+    public void flush() throws IOException {
+        drain(true);
+        if (_writer != null)
+            _writer.flush();
+    }
+
+    //			        *********************************
+    // ================ *            Output             * ==================
+    //                  *********************************
+
+    private void closeStartTag() throws IOException {
+        if (_tagOpen) {
+            write('>');
+            _tagOpen = false;
+        }
+    }
+
+    private void newLine(final int depth) throws IOException {
+        if (!_pretty)
+            return;
+
+        if (_started)
+            write('\n');
+        _started = true;
+
+        write(_linePrefix);
+
+        final int width = depth * INDENT_WIDTH;
+        if (_indent.length < width) {
+            _indent = new char[Math.max(width, _indent.length * 2)];
+            Arrays.fill(_indent, ' ');
+        }
+        write(_indent, width);
+    }
+
+    private void escape(final String s, final boolean attribute) throws IOException {
+        final int len = s.length();
+        for (int i = 0; i < len; i++) {
+            final char c = s.charAt(i);
+            switch (c) {
+                case '&':  write("&amp;");  break;
+                case '<':  write("&lt;");   break;
+                case '>':  write("&gt;");   break;
+                case '"':
+                    if (attribute) write("&quot;"); else write(c);
+                    break;
+                case '\n':
+                    if (attribute) write("&#10;"); else write(c);
+                    break;
+                case '\r': write("&#13;");  break;
+                case '\t':
+                    if (attribute) write("&#9;"); else write(c);
+                    break;
+                default:   write(c);
+            }
+        }
+    }
+
+    private void write(final char c) throws IOException {
+        if (_pos == _buf.length)
+            drain(false);
+        _buf[_pos++] = c;
+    }
+
+    private void write(final String s) throws IOException {
+        int offset = 0;
+        final int len = s.length();
+        while (offset < len) {
+            if (_pos == _buf.length)
+                drain(false);
+
+            final int n = Math.min(len - offset, _buf.length - _pos);
+            s.getChars(offset, offset + n, _buf, _pos);
+            _pos += n;
+            offset += n;
+        }
+    }
+
+    private void write(final char[] chars, final int len) throws IOException {
+        int offset = 0;
+        while (offset < len) {
+            if (_pos == _buf.length)
+                drain(false);
+
+            final int n = Math.min(len - offset, _buf.length - _pos);
+            System.arraycopy(chars, offset, _buf, _pos, n);
+            _pos += n;
+            offset += n;
+        }
+    }
+
+    /**
+     * Moves buffered characters to the sink. When not at the end of input a
+     * trailing high surrogate stays buffered until its pair arrives.
+     */
+    private void drain(final boolean endOfInput) throws IOException {
+        if (_writer != null) {
+            _writer.write(_buf, 0, _pos);
+            _pos = 0;
+            return;
+        }
+
+        _chars.limit(_pos).position(0);
+        final ByteBuffer out = _target != null ? _target : _bytes;
+        while (true) {
+            final CoderResult result = _encoder.encode(_chars, out, endOfInput);
+            if (result.isOverflow()) {
+                if (_target != null)
+                    throw new BufferOverflowException();
+                writeBytes();
+            } else if (result.isError()) {
+                result.throwException();
+            } else {
+                break;
+            }
+        }
+
+        if (endOfInput) {
+            while (_encoder.flush(out).isOverflow()) {
+                if (_target != null)
+                    throw new BufferOverflowException();
+                writeBytes();
+            }
+            _encoder.reset();
+        }
+
+        final int left = _chars.remaining();
+        System.arraycopy(_buf, _chars.position(), _buf, 0, left);
+        _pos = left;
+
+        if (_channel != null)
+            writeBytes();
+    }
+
+    private void writeBytes() throws IOException {
+        _bytes.flip();
+        while (_bytes.hasRemaining())
+            _channel.write(_bytes);
+        _bytes.clear();
+    }
+}
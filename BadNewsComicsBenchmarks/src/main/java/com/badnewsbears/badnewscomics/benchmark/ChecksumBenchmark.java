@@ -0,0 +1,109 @@
+package com.badnewsbears.badnewscomics.benchmark;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.badnewsbears.badnewscomics.database.FileChecksum;
+
+/**
+ * {@link FileChecksum} over a database sized file in each algorithm, against
+ * the 1 KB stream MD5 it replaced (<code>stream-md5</code>). The file is written once per trial, so
+ * after the first iteration it is hashed from the page cache &amp; the
+ * <code>megabytes</code> counter reads as MB/s of hashing throughput.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+public class ChecksumBenchmark {
+
+    private static final String STREAM_MD5 = "stream-md5";
+
+    @Param("256")
+    public int sizeMb;
+
+    @Param({"crc32c", "md5", "sha256", STREAM_MD5})
+    public String algorithm;
+
+    private File _file;
+    private int _algorithm;
+
+    /** Megabytes hashed, reported by JMH as a rate. */
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Throughput {
+        public double megabytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            megabytes = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        _algorithm = FileChecksum.getAlgorithm(algorithm);
+        _file = File.createTempFile("checksum", ".s3db");
+
+        final Random random = new Random(1);
+        final byte[] block = new byte[1024 * 1024];
+        final FileOutputStream out = new FileOutputStream(_file);
+        try {
+            for (int i = 0; i < sizeMb; i++) {
+                random.nextBytes(block);
+                out.write(block);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        _file.delete();
+    }
+
+    @Benchmark
+    public byte[] digest(final Throughput throughput) throws Exception {
+        final byte[] ret = _algorithm < 0 ? streamMd5() : FileChecksum.digest(_file, _algorithm);
+        throughput.megabytes += sizeMb;
+        return ret;
+    }
+
+    /** The previous DatabaseManager.calcChecksum loop. */
+    private byte[] streamMd5() throws Exception {
+        final MessageDigest md = MessageDigest.getInstance("MD5");
+        final byte[] buffer = new byte[1024];
+        final FileInputStream in = new FileInputStream(_file);
+        try {
+            int len;
+            while ((len = in.read(buffer)) != -1)
+                md.update(buffer, 0, len);
+        } finally {
+            in.close();
+        }
+        return md.digest();
+    }
+}
@@ -0,0 +1,125 @@
+package com.badnewsbears.badnewscomics.benchmark;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Random;
+
+import com.badnewsbears.badnewscomics.xml.XmlWriter;
+
+/**
+ * Synthetic catalog feeds of a given shape &amp; size. Output only depends on
+ * the arguments, so every run benchmarks the same documents.
+ * <ul>
+ * <li>{@link #WIDE} - a flat catalog of comics with a few text children each</li>
+ * <li>{@link #DEEP} - series nested {@link #DEEP_NESTING} levels deep, with a
+ * comic on every level</li>
+ * <li>{@link #ATTRIBUTES} - childless comics carrying all data as attributes</li>
+ * </ul>
+ */
+public final class FeedGenerator {
+
+    public static final String WIDE = "wide", DEEP = "deep", ATTRIBUTES = "attributes";
+
+    public static final int DEEP_NESTING = 256;
+
+    private static final String[] WORDS = {
+            "bad", "news", "bears", "return", "night", "city", "issue", "variant",
+            "cover", "annual", "special", "origin", "crisis", "legacy", "dawn"
+    };
+
+    private final Random _random;
+    private final XmlWriter _writer;
+    private int _nodes;
+
+    private FeedGenerator(final long seed, final StringWriter out) {
+        _random = new Random(seed);
+        _writer = new XmlWriter(out);
+    }
+
+    /**
+     * @param shape One of {@link #WIDE}, {@link #DEEP}, {@link #ATTRIBUTES}
+     * @param nodes Approximate number of elements
+     * @return UTF-8 encoded document
+     */
+    public static byte[] generate(final String shape, final int nodes) {
+        final StringWriter out = new StringWriter(nodes * 64);
+        final FeedGenerator generator = new FeedGenerator(nodes, out);
+        try {
+            generator.write(shape, nodes);
+            return out.toString().getBytes("UTF-8");
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void write(final String shape, final int nodes) throws IOException {
+        startElement("catalog");
+        while (_nodes < nodes) {
+            if (WIDE.equals(shape))
+                comic(true);
+            else if (DEEP.equals(shape))
+                series(nodes);
+            else if (ATTRIBUTES.equals(shape))
+                comic(false);
+            else
+                throw new IllegalArgumentException("Unknown shape " + shape);
+        }
+        _writer.endElement();
+        _writer.flush();
+    }
+
+    private void series(final int nodes) throws IOException {
+        int depth = 0;
+        while (depth < DEEP_NESTING && _nodes < nodes) {
+            startElement("series");
+            _writer.attribute("name", words(2));
+            comic(true);
+            depth++;
+        }
+        while (depth-- > 0)
+            _writer.endElement();
+    }
+
+    private void comic(final boolean children) throws IOException {
+        startElement("comic");
+        _writer.attribute("id", Integer.toString(_nodes));
+
+        if (children) {
+            textElement("title", words(3));
+            textElement("issue", Integer.toString(_random.nextInt(500)));
+            textElement("description", words(12));
+        } else {
+            _writer.attribute("title", words(3));
+            _writer.attribute("issue", Integer.toString(_random.nextInt(500)));
+            _writer.attribute("lang", _random.nextBoolean() ? "en" : "de");
+            _writer.attribute("publisher", words(1));
+            _writer.attribute("writer", words(2));
+            _writer.attribute("artist", words(2));
+            _writer.attribute("price", Integer.toString(_random.nextInt(2000)));
+            _writer.attribute("released", "2013-" + (1 + _random.nextInt(12)) + "-01");
+        }
+
+        _writer.endElement();
+    }
+
+    private void textElement(final String name, final String text) throws IOException {
+        startElement(name);
+        _writer.text(text);
+        _writer.endElement();
+    }
+
+    private void startElement(final String name) throws IOException {
+        _writer.startElement(name);
+        _nodes++;
+    }
+
+    private String words(final int count) {
+        final StringBuilder ret = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0)
+                ret.append(' ');
+            ret.append(WORDS[_random.nextInt(WORDS.length)]);
+        }
+        return ret.toString();
+    }
+}
@@ -0,0 +1,61 @@
+package com.badnewsbears.badnewscomics.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.util.Locale;
+
+import com.badnewsbears.badnewscomics.xml.XmlNode;
+
+/**
+ * Retained heap of a parsed {@link FeedGenerator} feed, which JMH's gc
+ * profiler does not report (it only counts allocations). Run with a fixed
+ * collector so numbers are comparable:
+ * <pre>
+ *     java -XX:+UseSerialGC -cp target/benchmarks.jar \
+ *         com.badnewsbears.badnewscomics.benchmark.HeapFootprint [shape] [nodes]
+ * </pre>
+ * Only {@link XmlNode#parse} is used, so the classes of an older XmlNode can
+ * be put ahead of the jar on the class path to measure it the same way.
+ */
+public final class HeapFootprint {
+
+    private static final int GC_RUNS = 5;
+
+    // Keeps the tree reachable while the heap is measured
+    private static XmlNode sTree;
+
+    private HeapFootprint() {
+    }
+
+    public static void main(final String[] args) throws Exception {
+        final String shape = args.length > 0 ? args[0] : FeedGenerator.WIDE;
+        final int nodes = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+
+        final byte[] feed = FeedGenerator.generate(shape, nodes);
+        final long before = usedHeap();
+        sTree = XmlNode.parse(new ByteArrayInputStream(feed));
+        final long after = usedHeap();
+
+        final int elements = countStartTags(feed);
+        final long retained = after - before;
+        System.out.println(String.format(Locale.US, "%s: %d elements, %.0f MB retained, %d bytes/element",
+                shape, elements, retained / (1024.0 * 1024.0), retained / elements));
+    }
+
+    private static int countStartTags(final byte[] feed) {
+        int ret = 0;
+        for (int i = 0; i + 1 < feed.length; i++) {
+            if (feed[i] == '<' && Character.isLetter(feed[i + 1]))
+                ret++;
+        }
+        return ret;
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        final Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < GC_RUNS; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
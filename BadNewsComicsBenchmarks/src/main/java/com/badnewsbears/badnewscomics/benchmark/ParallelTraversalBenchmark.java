@@ -0,0 +1,96 @@
+package com.badnewsbears.badnewscomics.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.badnewsbears.badnewscomics.xml.NameFilter;
+import com.badnewsbears.badnewscomics.xml.ParallelTraversal;
+import com.badnewsbears.badnewscomics.xml.XmlNode;
+
+/**
+ * Sequential against always-split {@link ParallelTraversal} walks over
+ * growing documents. The size where the parallel variants overtake the
+ * sequential ones is the crossover to use for
+ * {@link ParallelTraversal#setThreshold(int)} on the measured machine.
+ * <br/><br/>
+ * Parallelism is a parameter rather than the core count, which may be 1 on
+ * build machines &amp; would never split. Results only mean something when
+ * the machine has at least as many cores as the parallelism measured.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+public class ParallelTraversalBenchmark {
+
+    @Param({"1000", "8192", "65536"})
+    public int nodes;
+
+    private XmlNode _document;
+    private final NameFilter _comics = new NameFilter("comic");
+
+    /**
+     * Thread pool for the parallel variants only, so the sequential ones are
+     * not repeated for every parallelism.
+     */
+    @State(Scope.Benchmark)
+    public static class Pool {
+
+        @Param({"2", "4", "8"})
+        public int parallelism;
+
+        private ExecutorService _executor;
+        private ParallelTraversal _traversal;
+
+        @Setup
+        public void setUp() {
+            _executor = Executors.newFixedThreadPool(parallelism);
+            _traversal = new ParallelTraversal(_executor, parallelism);
+            _traversal.setThreshold(0);
+        }
+
+        @TearDown
+        public void tearDown() {
+            _executor.shutdownNow();
+        }
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        _document = XmlNode.parse(new ByteArrayInputStream(
+                FeedGenerator.generate(FeedGenerator.WIDE, nodes)));
+    }
+
+    @Benchmark
+    public int countAllSequential() {
+        return _document.countAll(_comics);
+    }
+
+    @Benchmark
+    public int countAllParallel(final Pool pool) throws InterruptedException {
+        return pool._traversal.countAll(_document, _comics);
+    }
+
+    @Benchmark
+    public XmlNode[] findAllSequential() {
+        return _document.findAll(_comics);
+    }
+
+    @Benchmark
+    public XmlNode[] findAllParallel(final Pool pool) throws InterruptedException {
+        return pool._traversal.findAll(_document, _comics);
+    }
+}
@@ -0,0 +1,50 @@
+package com.badnewsbears.badnewscomics.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.badnewsbears.badnewscomics.xml.XmlNode;
+
+/**
+ * {@link XmlNode#parse} of in-memory feeds, with &amp; without text trimming.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+public class ParseBenchmark {
+
+    @Param({FeedGenerator.WIDE, FeedGenerator.DEEP, FeedGenerator.ATTRIBUTES})
+    public String shape;
+
+    @Param("10000")
+    public int nodes;
+
+    private byte[] _feed;
+
+    @Setup
+    public void setUp() {
+        _feed = FeedGenerator.generate(shape, nodes);
+    }
+
+    @Benchmark
+    public XmlNode parse() throws Exception {
+        return XmlNode.parse(new ByteArrayInputStream(_feed));
+    }
+
+    @Benchmark
+    public XmlNode parseTrimmed() throws Exception {
+        return XmlNode.parse(new ByteArrayInputStream(_feed),
+                XmlNode.PARSE_TRIM_WHITESPACE | XmlNode.PARSE_DROP_CONTAINER_TEXT);
+    }
+}
@@ -0,0 +1,78 @@
+package com.badnewsbears.badnewscomics.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.badnewsbears.badnewscomics.xml.NameFilter;
+import com.badnewsbears.badnewscomics.xml.XmlNode;
+
+/**
+ * Name lookups through {@link XmlNode#find}, {@link XmlNode#findAll},
+ * {@link XmlNode#count} &amp; {@link XmlNode#countAll}. The indexed variants
+ * run against a copy of the document with its name index enabled.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+public class QueryBenchmark {
+
+    @Param({FeedGenerator.WIDE, FeedGenerator.DEEP, FeedGenerator.ATTRIBUTES})
+    public String shape;
+
+    @Param("10000")
+    public int nodes;
+
+    private XmlNode _document;
+    private XmlNode _indexed;
+    private final NameFilter _comics = new NameFilter("comic");
+
+    @Setup
+    public void setUp() throws Exception {
+        final byte[] feed = FeedGenerator.generate(shape, nodes);
+        _document = XmlNode.parse(new ByteArrayInputStream(feed));
+        _indexed = XmlNode.parse(new ByteArrayInputStream(feed));
+        _indexed.setNameIndexEnabled(true);
+        _indexed.countAll(_comics); // build the index outside of the measurement
+    }
+
+    @Benchmark
+    public XmlNode[] find() {
+        return _document.find(_comics);
+    }
+
+    @Benchmark
+    public int count() {
+        return _document.count(_comics);
+    }
+
+    @Benchmark
+    public XmlNode[] findAll() {
+        return _document.findAll(_comics);
+    }
+
+    @Benchmark
+    public int countAll() {
+        return _document.countAll(_comics);
+    }
+
+    @Benchmark
+    public XmlNode[] findAllIndexed() {
+        return _indexed.findAll(_comics);
+    }
+
+    @Benchmark
+    public int countAllIndexed() {
+        return _indexed.countAll(_comics);
+    }
+}
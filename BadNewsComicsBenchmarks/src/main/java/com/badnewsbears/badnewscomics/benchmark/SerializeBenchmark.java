@@ -0,0 +1,63 @@
+package com.badnewsbears.badnewscomics.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.badnewsbears.badnewscomics.xml.XmlNode;
+
+/**
+ * {@link XmlNode#dump} into a stream that discards its input, so only
+ * serialization &amp; encoding are measured.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+public class SerializeBenchmark {
+
+    @Param({FeedGenerator.WIDE, FeedGenerator.DEEP, FeedGenerator.ATTRIBUTES})
+    public String shape;
+
+    @Param("10000")
+    public int nodes;
+
+    private XmlNode _document;
+    private final PrintStream _out = new PrintStream(new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    });
+
+    @Setup
+    public void setUp() throws Exception {
+        _document = XmlNode.parse(new ByteArrayInputStream(FeedGenerator.generate(shape, nodes)));
+    }
+
+    @Benchmark
+    public boolean dump() {
+        _document.dump(_out, false);
+        return _out.checkError();
+    }
+
+    @Benchmark
+    public boolean dumpPretty() {
+        _document.dump(_out, true);
+        return _out.checkError();
+    }
+}
@@ -0,0 +1,72 @@
+package com.badnewsbears.badnewscomics.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.badnewsbears.badnewscomics.xml.TreeVisitor;
+import com.badnewsbears.badnewscomics.xml.XmlNode;
+
+/**
+ * Full document order walks through {@link XmlNode#getNext()} &amp;
+ * {@link XmlNode#walk(TreeVisitor)}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+public class TraversalBenchmark {
+
+    @Param({FeedGenerator.WIDE, FeedGenerator.DEEP, FeedGenerator.ATTRIBUTES})
+    public String shape;
+
+    @Param("10000")
+    public int nodes;
+
+    private XmlNode _document;
+
+    @Setup
+    public void setUp() throws Exception {
+        _document = XmlNode.parse(new ByteArrayInputStream(FeedGenerator.generate(shape, nodes)));
+    }
+
+    @Benchmark
+    public int getNext() {
+        int ret = 0;
+        for (XmlNode node = _document; node != null; node = node.getNext())
+            ret++;
+        return ret;
+    }
+
+    @Benchmark
+    public int walk() {
+        final Counter counter = new Counter();
+        _document.walk(counter);
+        return counter.count;
+    }
+
+    private static class Counter implements TreeVisitor {
+
+        int count;
+
+        @Override
+        public int enter(XmlNode node) {
+            count++;
+            return CONTINUE;
+        }
+
+        @Override
+        public int exit(XmlNode node) {
+            return CONTINUE;
+        }
+    }
+}
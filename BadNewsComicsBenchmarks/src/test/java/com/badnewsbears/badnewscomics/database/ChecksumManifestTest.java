@@ -0,0 +1,141 @@
+package com.badnewsbears.badnewscomics.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Drives real WAL databases the way DatabaseManager stores &amp; checks
+ * manifests: read the log, checkpoint, then hash the file.
+ */
+public class ChecksumManifestTest {
+
+    private static final int ROWS = 800;
+    private static final int ROW_SIZE = 4000; // about 3 MB, several chunks
+
+    @Rule
+    public final TemporaryFolder _folder = new TemporaryFolder();
+
+    private File _file;
+    private Connection _db;
+
+    @Before
+    public void open() throws Exception {
+        _file = new File(_folder.getRoot(), "test.s3db");
+        _db = DriverManager.getConnection("jdbc:sqlite:" + _file.getPath());
+        final Statement st = _db.createStatement();
+        st.execute("PRAGMA journal_mode=WAL");
+        // Only the checkpoints of the test copy pages back
+        st.execute("PRAGMA wal_autocheckpoint=0");
+        st.execute("CREATE TABLE t (id INTEGER PRIMARY KEY, v BLOB)");
+        st.close();
+
+        final Random random = new Random(1);
+        _db.setAutoCommit(false);
+        final PreparedStatement insert = _db.prepareStatement("INSERT INTO t VALUES (?, ?)");
+        for (int i = 0; i < ROWS; i++) {
+            final byte[] value = new byte[ROW_SIZE];
+            random.nextBytes(value);
+            insert.setInt(1, i);
+            insert.setBytes(2, value);
+            insert.executeUpdate();
+        }
+        insert.close();
+        _db.commit();
+        _db.setAutoCommit(true);
+    }
+
+    @After
+    public void close() throws Exception {
+        if (!_db.isClosed())
+            _db.close();
+    }
+
+    private ChecksumManifest store() throws Exception {
+        checkpoint();
+        return ChecksumManifest.create(_file, FileChecksum.ALGORITHM_MD5);
+    }
+
+    private void checkpoint() throws Exception {
+        final Statement st = _db.createStatement();
+        final ResultSet result = st.executeQuery("PRAGMA wal_checkpoint(TRUNCATE)");
+        assertTrue(result.next());
+        assertEquals("busy", 0, result.getInt(1));
+        result.close();
+        st.close();
+    }
+
+    private void write(final int id) throws Exception {
+        final PreparedStatement update = _db.prepareStatement("UPDATE t SET v = ? WHERE id = ?");
+        update.setBytes(1, new byte[ROW_SIZE]);
+        update.setInt(2, id);
+        update.executeUpdate();
+        update.close();
+    }
+
+    @Test
+    public void manifestStillMatchesAfterTheLastHandleCloses() throws Exception {
+        final ChecksumManifest manifest = store();
+        assertTrue(manifest.getChunkCount() > 1);
+
+        // Checkpoints and deletes the log
+        _db.close();
+        assertFalse(new File(_file.getPath() + "-wal").exists());
+
+        assertEquals(0, manifest.verify(_file).length);
+        assertEquals(0, manifest.verifyChanges(_file).length);
+    }
+
+    @Test
+    public void updateOnlyRehashesCheckpointedChunks() throws Exception {
+        final ChecksumManifest manifest = store();
+
+        write(ROWS / 2);
+        final ChecksumManifest.Wal wal = ChecksumManifest.Wal.read(_file);
+        checkpoint();
+        assertTrue(manifest.update(_file, wal) < manifest.getChunkCount());
+        assertEquals(ChecksumManifest.create(_file, FileChecksum.ALGORITHM_MD5).getRootChecksum(),
+                manifest.getRootChecksum());
+
+        _db.close();
+        assertEquals(0, manifest.verify(_file).length);
+    }
+
+    @Test
+    public void verifyChangesFindsWritesSinceStoring() throws Exception {
+        final ChecksumManifest manifest = store();
+        assertEquals(0, manifest.verifyChanges(_file, ChecksumManifest.Wal.read(_file), null).length);
+
+        write(ROWS / 2);
+        final ChecksumManifest.Wal wal = ChecksumManifest.Wal.read(_file);
+        checkpoint();
+        assertEquals(1, manifest.verifyChanges(_file, wal, null).length);
+    }
+
+    @Test
+    public void checkpointOnCloseFallsBackToFullRead() throws Exception {
+        final ChecksumManifest manifest = store();
+
+        // Keep the close's checkpoint out of the millisecond of the last update
+        Thread.sleep(10);
+        write(0);
+        _db.close();
+
+        assertEquals(manifest.getChunkCount(), manifest.update(_file, ChecksumManifest.Wal.read(_file)));
+        assertEquals(0, manifest.verify(_file).length);
+    }
+}
@@ -0,0 +1,47 @@
+package com.badnewsbears.badnewscomics.xml;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+public class XmlDiffTest {
+
+    private static ArrayList<XmlNode> modified(final XmlNode oldTree, final XmlNode newTree) {
+        final ArrayList<XmlNode> ret = new ArrayList<XmlNode>();
+        new XmlDiff().diff(oldTree, newTree, new XmlDiff.DiffListener() {
+            @Override
+            public void onAdded(XmlNode node) {
+            }
+
+            @Override
+            public void onRemoved(XmlNode node) {
+            }
+
+            @Override
+            public void onModified(XmlNode oldNode, XmlNode newNode) {
+                ret.add(newNode);
+            }
+        });
+        return ret;
+    }
+
+    private static XmlNode node(final String attribute, final String value) {
+        final XmlNode ret = new XmlNode("a");
+        ret.setAttributeValue(attribute, value);
+        return ret;
+    }
+
+    @Test
+    public void nullAttributeValuesCompareSafely() {
+        assertEquals(0, modified(node("id", null), node("id", null)).size());
+        assertEquals(1, modified(node("id", null), node("id", "1")).size());
+        assertEquals(1, modified(node("id", "1"), node("id", null)).size());
+    }
+
+    @Test
+    public void nullAttributeDoesNotMatchMissingOne() {
+        assertEquals(1, modified(node("id", null), node("name", "x")).size());
+    }
+}
@@ -0,0 +1,29 @@
+package com.badnewsbears.badnewscomics.xml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayInputStream;
+
+import org.junit.Test;
+
+public class XmlNodeTest {
+
+    private static XmlNode parse(String xml) throws Exception {
+        return XmlNode.parse(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+    }
+
+    @Test
+    public void addAfterParseGrowsTrimmedChildren() throws Exception {
+        final XmlNode doc = parse("<a><b>x</b></a>");
+        assertEquals(1, doc.getChildCount());
+
+        final XmlNode c = new XmlNode("c");
+        doc.add(c);
+        doc.add(new XmlNode("d"));
+
+        assertEquals(3, doc.getChildCount());
+        assertSame(c, doc.getChild(1));
+        assertEquals(1, c.getIndex());
+    }
+}
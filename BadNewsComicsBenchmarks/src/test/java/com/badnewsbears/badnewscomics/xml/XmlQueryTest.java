@@ -0,0 +1,47 @@
+package com.badnewsbears.badnewscomics.xml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+public class XmlQueryTest {
+
+    private static XmlNode parse(String xml) throws Exception {
+        return XmlNode.parse(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+    }
+
+    private static ArrayList<String> ids(XmlQuery query, XmlNode context) {
+        final ArrayList<String> ret = new ArrayList<String>();
+        for (XmlNode node : query.select(context))
+            ret.add(node.getAttributeValue("id"));
+        return ret;
+    }
+
+    @Test
+    public void nestedContextsDoNotDuplicateMatches() throws Exception {
+        final XmlNode root = parse("<r><a><c><a><c><b/></c></a></c><d/></a></r>");
+        final XmlQuery query = XmlQuery.compile("//a/*//b");
+
+        assertEquals(root.findAll(new NameFilter("b")).length, query.count(root));
+        assertEquals(1, ids(query, root).size());
+    }
+
+    @Test
+    public void nestedContextsKeepDocumentOrder() throws Exception {
+        final XmlNode root = parse(
+                "<r><a><c><a><b id='1'/></a></c><b id='2'/></a><a><b id='3'/></a></r>");
+        final XmlQuery query = XmlQuery.compile("//a/b");
+
+        final ArrayList<String> expected = new ArrayList<String>();
+        expected.add("1");
+        expected.add("2");
+        expected.add("3");
+        assertEquals(expected, ids(query, root));
+        assertEquals(3, query.count(root));
+        assertSame(root.findAll(new NameFilter("b"))[0], query.first(root));
+    }
+}
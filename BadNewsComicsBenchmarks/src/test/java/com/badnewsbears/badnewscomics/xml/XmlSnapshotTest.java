@@ -0,0 +1,78 @@
+package com.badnewsbears.badnewscomics.xml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class XmlSnapshotTest {
+
+    private static final String XML =
+            "<comics><comic id=\"1\" name=\"a\">x</comic><comic id=\"2\"/><empty/></comics>";
+
+    @Rule
+    public final TemporaryFolder _folder = new TemporaryFolder();
+
+    private File write() throws Exception {
+        final File ret = _folder.newFile();
+        XmlSnapshot.write(XmlNode.parse(new ByteArrayInputStream(XML.getBytes("UTF-8"))), ret, 42);
+        return ret;
+    }
+
+    private static void assertRejected(final File file) {
+        try {
+            XmlSnapshot.open(file);
+            fail("Opened a broken snapshot of " + file.length() + " bytes");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void intactSnapshotOpens() throws Exception {
+        final XmlSnapshot snapshot = XmlSnapshot.open(write());
+        assertEquals(42, snapshot.getSourceChecksum());
+        assertEquals(4, snapshot.getNodeCount());
+        assertEquals("2", snapshot.getAttributeValue(2, "id"));
+        assertEquals("x", snapshot.toXmlNode(0).getChild(0).getValue());
+    }
+
+    @Test
+    public void everyTruncationIsRejectedOnOpen() throws Exception {
+        final File file = write();
+        for (long length = file.length() - 1; length >= 0; length--) {
+            final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(length);
+            } finally {
+                raf.close();
+            }
+            assertRejected(file);
+        }
+    }
+
+    @Test
+    public void tableOffsetsOutsideTheFileAreRejected() throws Exception {
+        final File file = write();
+        for (int field = 16; field < 40; field += 4) {
+            final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.seek(field);
+                final int value = raf.readInt();
+                raf.seek(field);
+                raf.writeInt(value + 4);
+                assertRejected(file);
+                raf.seek(field);
+                raf.writeInt(value);
+            } finally {
+                raf.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package com.badnewsbears.badnewscomics.xml;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.StringWriter;
+
+import org.junit.Test;
+
+public class XmlWriterTest {
+
+    @Test
+    public void nullAttributeAndTextAreWrittenEmpty() throws Exception {
+        final XmlNode node = new XmlNode("a");
+        node.setAttributeValue("id", null);
+        node.setValue(null);
+
+        final StringWriter out = new StringWriter();
+        final XmlWriter writer = new XmlWriter(out);
+        writer.write(node);
+        writer.startElement("b").attribute("x", null).text(null).endElement();
+        writer.flush();
+
+        assertEquals("<a id=\"\"/><b x=\"\"/>", out.toString());
+    }
+}